@@ -0,0 +1,72 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.benchmark;
+
+import com.github.commonclasses.storage.FileOperations;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileOperations#copyFile(File, File)} by file size, bytes per second is size times
+ * the score
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CopyBenchmark {
+    @Param({"4096", "262144", "4194304", "33554432"})
+    public int size;
+
+    private File directory;
+    private File src;
+    private File tgt;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("copy");
+        src = new File(directory, "src");
+        tgt = new File(directory, "tgt");
+        Files.writeRandom(src, size, new Random(size));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Files.deleteTree(directory);
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        FileOperations.copyFile(src, tgt);
+        return tgt.length();
+    }
+}
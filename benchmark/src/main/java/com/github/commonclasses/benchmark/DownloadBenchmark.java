@@ -0,0 +1,140 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.benchmark;
+
+import com.github.commonclasses.network.DownloadClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfer loop of {@link DownloadClient} against an HTTP server in this process, so the
+ * score is the client's cost and not the network's. Bytes per second is size times the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DownloadBenchmark {
+    @Param({"16384", "1048576", "16777216"})
+    public int size;
+
+    @Param({"1", "4"})
+    public int segments;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private DownloadClient client;
+    private String urlStr;
+    private File directory;
+    private File dest;
+
+    @Setup
+    public void setUp() throws IOException {
+        // otherwise Nagle's algorithm and delayed ACKs add 40ms to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        byte[] body = Files.randomBytes(size, new Random(size));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file", new RangeHandler(body));
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        urlStr = "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        client = new DownloadClient();
+        directory = Files.createTempDirectory("download");
+        dest = new File(directory, "dest");
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        Files.deleteTree(directory);
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        return segments == 1 ? client.download(urlStr, dest, false, null)
+                : client.download(urlStr, dest, segments, null);
+    }
+
+    /**
+     * Serves one body, honouring single "bytes=start-[end]" ranges for segmented downloads
+     */
+    private static class RangeHandler implements HttpHandler {
+        private final byte[] body;
+
+        RangeHandler(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int start = 0;
+            int end = body.length - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", 2);
+                start = Integer.parseInt(bounds[0]);
+                if (bounds.length > 1 && bounds[1].length() > 0) {
+                    end = Math.min(Integer.parseInt(bounds[1]), end);
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + body.length);
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("ETag", "\"benchmark\"");
+            int length = end - start + 1;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(status, length);
+            OutputStream os = exchange.getResponseBody();
+            try {
+                os.write(body, start, length);
+            } finally {
+                os.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Scratch files of the benchmarks
+ */
+final class Files {
+    private Files() {
+    }
+
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Can't create " + directory);
+        }
+        return directory;
+    }
+
+    static byte[] randomBytes(int size, Random random) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    static void writeRandom(File file, int size, Random random) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(randomBytes(size, random));
+        } finally {
+            os.close();
+        }
+    }
+
+    static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
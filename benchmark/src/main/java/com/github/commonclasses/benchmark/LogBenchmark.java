@@ -0,0 +1,83 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.benchmark;
+
+import android.util.Log;
+import com.github.commonclasses.logwrapper.LogTag;
+import com.github.commonclasses.logwrapper.LogWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log calls per second through {@link LogWrapper}, with logging on and off
+ * <p/>
+ * The android.util.Log shim drops the output, so this is the cost of the wrapper itself:
+ * level check, caller capture and formatting. The "Quiet" tag only logs errors, its debug
+ * calls are rejected by the per tag level before any caller capture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LogBenchmark {
+    private static final LogTag TAG = new LogTag("Benchmark");
+
+    @Param({"true", "false"})
+    public boolean enabled;
+
+    @Param({"always", "none"})
+    public String caller;
+
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        LogWrapper.control(enabled);
+        LogWrapper.setLevel("Quiet", Log.ERROR);
+        LogWrapper.setCallerInfo("always".equals(caller) ? LogWrapper.CALLER_ALWAYS : LogWrapper.CALLER_NONE);
+    }
+
+    @Benchmark
+    public void message() {
+        LogWrapper.d("Benchmark", "a constant message");
+    }
+
+    @Benchmark
+    public void filtered() {
+        LogWrapper.d("Quiet", "a filtered message");
+    }
+
+    @Benchmark
+    public void pattern() {
+        LogWrapper.d(TAG, "value {} of {}", counter++, "pattern");
+    }
+
+    @Benchmark
+    public void concatenated() {
+        LogWrapper.d("Benchmark", "value " + counter++ + " of concatenated");
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.benchmark;
+
+import com.github.commonclasses.string.RandomString;
+import com.github.commonclasses.string.RandomStringGenerator;
+import com.github.commonclasses.string.UniqueIdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token generation throughput with 1, 2 and all available threads sharing one generator
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RandomStringBenchmark {
+    private final RandomStringGenerator secure = new RandomStringGenerator(
+            RandomStringGenerator.CHARSET_ALPHANUMERIC, 32, true);
+    private final RandomStringGenerator fast = new RandomStringGenerator(
+            RandomStringGenerator.CHARSET_ALPHANUMERIC, 32, false);
+    private final UniqueIdGenerator ids = UniqueIdGenerator.getDefault();
+
+    @Benchmark
+    @Threads(1)
+    public String randomString1() {
+        return RandomString.getRandomString();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public String randomString2() {
+        return RandomString.getRandomString();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String randomStringMax() {
+        return RandomString.getRandomString();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String secure1() {
+        return secure.next();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String secureMax() {
+        return secure.next();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String fast1() {
+        return fast.next();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String fastMax() {
+        return fast.next();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long uniqueId1() {
+        return ids.nextId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long uniqueIdMax() {
+        return ids.nextId();
+    }
+}
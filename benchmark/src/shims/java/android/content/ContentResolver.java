@@ -0,0 +1,32 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.content;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+public abstract class ContentResolver {
+    public abstract Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                 String sortOrder);
+
+    public abstract Uri insert(Uri uri, ContentValues values);
+
+    public abstract int bulkInsert(Uri uri, ContentValues[] values);
+}
@@ -0,0 +1,36 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.os;
+
+/**
+ * External storage always reads as removed, files go to the internal directory
+ */
+public final class Environment {
+    public static final String MEDIA_MOUNTED = "mounted";
+    public static final String MEDIA_MOUNTED_READ_ONLY = "mounted_ro";
+    public static final String MEDIA_REMOVED = "removed";
+
+    private Environment() {
+    }
+
+    public static String getExternalStorageState() {
+        return MEDIA_REMOVED;
+    }
+}
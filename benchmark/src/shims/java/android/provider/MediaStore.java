@@ -0,0 +1,38 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.provider;
+
+import android.net.Uri;
+
+public final class MediaStore {
+    private MediaStore() {
+    }
+
+    public interface MediaColumns {
+        String _ID = "_id";
+        String DATA = "_data";
+    }
+
+    public static final class Images {
+        public static final class Media implements MediaColumns {
+            public static final Uri EXTERNAL_CONTENT_URI = Uri.parse("content://media/external/images/media");
+        }
+    }
+}
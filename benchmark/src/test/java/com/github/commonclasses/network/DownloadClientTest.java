@@ -0,0 +1,184 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import com.github.commonclasses.storage.FileOperations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connection pooling of {@link DownloadClient}, against a keep-alive HTTP server in the
+ * same process which counts the connections it accepts
+ */
+public class DownloadClientTest {
+    private static final int SIZE = 64 * 1024;
+
+    private final byte[] body = new byte[SIZE];
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final List<String> ranges = new CopyOnWriteArrayList<String>();
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private DownloadClient client;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        client = new DownloadClient();
+        directory = File.createTempFile("download", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.shutdown();
+        serverSocket.close();
+        acceptor.join(1000);
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void connectionIsReusedAcrossDownloads() throws Exception {
+        String url = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/file";
+        for (int i = 0; i < 5; i++) {
+            File dest = new File(directory, "file" + i);
+            assertEquals(SIZE, client.download(url, dest, false, null));
+            assertArrayEquals(body, FileOperations.readFully(dest));
+        }
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void separateClientsOpenTheirOwnConnections() throws Exception {
+        String url = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/file";
+        DownloadClient other = new DownloadClient();
+        try {
+            client.download(url, new File(directory, "a"), false, null);
+            other.download(url, new File(directory, "b"), false, null);
+            client.download(url, new File(directory, "c"), false, null);
+        } finally {
+            other.shutdown();
+        }
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void partialFileWithoutValidatorIsDownloadedAgain() throws Exception {
+        String url = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/file";
+        File dest = new File(directory, "partial");
+        FileOperations.writeAtomically(dest, new byte[1000]);
+        DownloadJournal journal = new DownloadJournal(dest, url, null, null, SIZE);
+        journal.addRange(0, 1000);
+        journal.save();
+
+        assertEquals(SIZE, client.download(url, dest, true, null));
+        assertArrayEquals(body, FileOperations.readFully(dest));
+        assertTrue(ranges.isEmpty());
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            accepted.incrementAndGet();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Answer GET requests on one keep-alive connection until the client closes it
+     */
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream os = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null) {
+                String line;
+                while ((line = reader.readLine()) != null && line.length() > 0) {
+                    if (line.regionMatches(true, 0, "Range:", 0, 6)) {
+                        ranges.add(line);
+                    }
+                }
+                String head = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length
+                        + "\r\nContent-Type: application/octet-stream\r\n\r\n";
+                os.write(head.getBytes("ISO-8859-1"));
+                if (requestLine.startsWith("GET ")) {
+                    os.write(body);
+                }
+                os.flush();
+            }
+        } catch (IOException e) {
+            // connection closed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlobStoreTest {
+    private File directory;
+    private BlobStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("blobs", "");
+        directory.delete();
+        store = new BlobStore(directory, 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        store.put("a", new byte[]{1, 2, 3});
+        store.put("b", new byte[0], false);
+        store.put("a", new byte[]{4});
+        assertArrayEquals(new byte[]{4}, store.get("a"));
+        assertArrayEquals(new byte[0], store.get("b"));
+        assertNull(store.get("c"));
+
+        reopen();
+        assertEquals(2, store.size());
+        assertArrayEquals(new byte[]{4}, store.get("a"));
+        assertArrayEquals(new byte[0], store.get("b"));
+    }
+
+    @Test
+    public void deleteRemovesTheKey() throws IOException {
+        store.put("a", new byte[]{1});
+        store.put("b", new byte[]{2});
+        assertTrue(store.delete("a"));
+        assertFalse(store.delete("a"));
+        assertFalse(store.contains("a"));
+        assertEquals(1, store.size());
+
+        reopen();
+        assertNull(store.get("a"));
+        assertEquals(1, store.size());
+        assertArrayEquals(new byte[]{2}, store.get("b"));
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveRecords() throws IOException {
+        byte[] value = new byte[200];
+        for (int i = 0; i < 20; i++) {
+            value[0] = (byte) i;
+            store.put("key" + (i % 4), value, false);
+        }
+        store.delete("key3");
+        long before = directorySize();
+
+        store.compact();
+        assertTrue(directorySize() < before);
+        assertEquals(3, store.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(16 + i, store.get("key" + i)[0]);
+        }
+
+        reopen();
+        assertEquals(3, store.size());
+        assertNull(store.get("key3"));
+        assertEquals(18, store.get("key2")[0]);
+    }
+
+    @Test
+    public void truncatedTailIsCutOff() throws IOException {
+        store.put("a", new byte[]{1, 2, 3});
+        store.put("b", new byte[]{4, 5, 6});
+        store.close();
+        File segment = new File(directory, "0.seg");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(file.length() - 2);
+        } finally {
+            file.close();
+        }
+
+        store = new BlobStore(directory, 1024);
+        assertArrayEquals(new byte[]{1, 2, 3}, store.get("a"));
+        assertNull(store.get("b"));
+        store.put("c", new byte[]{7});
+
+        reopen();
+        assertArrayEquals(new byte[]{1, 2, 3}, store.get("a"));
+        assertArrayEquals(new byte[]{7}, store.get("c"));
+        assertEquals(2, store.size());
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = new BlobStore(directory, 1024);
+    }
+
+    private long directorySize() {
+        long size = 0;
+        for (File file : directory.listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+}
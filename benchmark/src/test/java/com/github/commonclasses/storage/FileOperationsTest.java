@@ -0,0 +1,121 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileOperationsTest {
+    private File directory;
+    private File src;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("files", "");
+        directory.delete();
+        src = new File(directory, "src");
+        new File(src, "sub").mkdirs();
+        write(new File(src, "a"), new byte[]{1, 2, 3});
+        write(new File(src, "sub/b"), new byte[]{4, 5});
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void copyDirectoryCopiesTheTree() throws IOException {
+        File tgt = new File(directory, "tgt");
+        assertEquals(5, FileOperations.copyDirectory(src, tgt, 2));
+        assertArrayEquals(new byte[]{1, 2, 3}, FileOperations.readFully(new File(tgt, "a")));
+        assertArrayEquals(new byte[]{4, 5}, FileOperations.readFully(new File(tgt, "sub/b")));
+    }
+
+    @Test
+    public void copyDirectoryIntoItselfIsRejected() {
+        try {
+            FileOperations.copyDirectory(src, new File(src, "sub/copy"), 2);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(src, "sub/copy").exists());
+    }
+
+    @Test
+    public void moveDirectoryIntoItselfIsRejected() throws IOException {
+        File tgt = new File(new File(src, "."), "moved");
+        try {
+            FileOperations.moveDirectory(src, tgt, 2);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(new File(src, "a").isFile());
+    }
+
+    @Test
+    public void siblingWithTheSamePrefixIsAllowed() throws IOException {
+        File tgt = new File(directory, "src2");
+        FileOperations.moveDirectory(src, tgt, 2);
+        assertTrue(new File(tgt, "sub/b").isFile());
+        assertFalse(src.exists());
+    }
+
+    @Test
+    public void writeAtomicallyReplacesTheContent() throws IOException {
+        File file = new File(directory, "a");
+        FileOperations.writeAtomically(file, new byte[]{6});
+        FileOperations.writeAtomically(file, new byte[]{7, 8});
+        assertArrayEquals(new byte[]{7, 8}, FileOperations.readFully(file));
+        assertEquals(2, directory.list().length);
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
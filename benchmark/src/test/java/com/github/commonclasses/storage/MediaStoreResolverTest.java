@@ -0,0 +1,229 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MediaStoreResolverTest {
+    private FakeContentResolver contentResolver;
+    private MediaStoreResolver resolver;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        contentResolver = new FakeContentResolver();
+        resolver = new MediaStoreResolver(contentResolver);
+        directory = File.createTempFile("media", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void unknownMissingFilesAreLeftOut() {
+        File known = new File(directory, "known.jpg");
+        contentResolver.rows.put(known.getAbsolutePath(), 7L);
+        File missing1 = new File(directory, "missing1.jpg");
+        File missing2 = new File(directory, "missing2.jpg");
+
+        Map<String, Uri> uris = resolver.getUris(Arrays.asList(missing1, known, missing2));
+
+        assertEquals(1, uris.size());
+        assertEquals(MediaStore.Images.Media.EXTERNAL_CONTENT_URI + "/7",
+                uris.get(known.getAbsolutePath()).toString());
+        assertFalse(uris.containsKey(missing1.getAbsolutePath()));
+        assertFalse(uris.containsKey(missing2.getAbsolutePath()));
+        assertEquals(0, contentResolver.inserts);
+    }
+
+    @Test
+    public void existingUnknownFilesAreInserted() throws IOException {
+        File file1 = new File(directory, "new1.jpg");
+        File file2 = new File(directory, "new2.jpg");
+        assertTrue(file1.createNewFile());
+        assertTrue(file2.createNewFile());
+
+        Map<String, Uri> uris = resolver.getUris(Arrays.asList(file1, file2, file1));
+
+        assertEquals(2, uris.size());
+        assertNotNull(uris.get(file1.getAbsolutePath()));
+        assertNotNull(uris.get(file2.getAbsolutePath()));
+        assertEquals(1, contentResolver.inserts);
+    }
+
+    @Test
+    public void resolvedUrisAreCached() {
+        File known = new File(directory, "known.jpg");
+        contentResolver.rows.put(known.getAbsolutePath(), 3L);
+
+        assertNotNull(resolver.getUri(known));
+        assertNotNull(resolver.getUri(known));
+        assertEquals(1, contentResolver.queries);
+
+        resolver.invalidate(known.getAbsolutePath());
+        assertNotNull(resolver.getUri(known));
+        assertEquals(2, contentResolver.queries);
+    }
+
+    @Test
+    public void pathsAreQueriedInBatches() {
+        resolver = new MediaStoreResolver(contentResolver, 16, 2);
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 5; i++) {
+            File file = new File(directory, i + ".jpg");
+            contentResolver.rows.put(file.getAbsolutePath(), (long) i);
+            files.add(file);
+        }
+
+        assertEquals(5, resolver.getUris(files).size());
+        assertEquals(3, contentResolver.queries);
+    }
+
+    /**
+     * MediaStore images table in memory, answers "_data IN (...)" queries
+     */
+    private static class FakeContentResolver extends ContentResolver {
+        final Map<String, Long> rows = new HashMap<String, Long>();
+        int queries;
+        int inserts;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
+            queries++;
+            List<Object[]> result = new ArrayList<Object[]>();
+            for (String path : selectionArgs) {
+                Long id = rows.get(path);
+                if (id != null) {
+                    result.add(new Object[]{id, path});
+                }
+            }
+            return new ListCursor(result);
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int bulkInsert(Uri uri, ContentValues[] values) {
+            inserts++;
+            for (ContentValues value : values) {
+                rows.put(value.getAsString(MediaStore.MediaColumns.DATA), (long) (100 + rows.size()));
+            }
+            return values.length;
+        }
+    }
+
+    /**
+     * Rows of (_id, _data)
+     */
+    private static class ListCursor implements Cursor {
+        private final List<Object[]> rows;
+        private int position = -1;
+
+        ListCursor(List<Object[]> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            position = 0;
+            return !rows.isEmpty();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return ++position < rows.size();
+        }
+
+        @Override
+        public int getCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            if (MediaStore.MediaColumns._ID.equals(columnName)) {
+                return 0;
+            }
+            return MediaStore.MediaColumns.DATA.equals(columnName) ? 1 : -1;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            int index = getColumnIndex(columnName);
+            if (index < 0) {
+                throw new IllegalArgumentException(columnName);
+            }
+            return index;
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return (int) getLong(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return (Long) rows.get(position)[columnIndex];
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            return String.valueOf(rows.get(position)[columnIndex]);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.image;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+
+/**
+ * Decodes image files down to the size they are displayed at
+ */
+class BitmapDecoder {
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decode a file with the largest power of 2 inSampleSize which keeps the image at least
+     * as big as the requested size, into a pooled bitmap when one fits.
+     *
+     * @param file      Image file
+     * @param reqWidth  Wanted width, 0 for the full size
+     * @param reqHeight Wanted height, 0 for the full size
+     * @param pool      Pool of reusable bitmaps, may be null
+     * @param options   Options to decode with, what a previous decode left in them is
+     *                  reset; {@link BitmapFactory.Options#requestCancelDecode()} on them
+     *                  stops the decoding
+     * @return the bitmap, null if the file can't be decoded or the decoding was cancelled
+     */
+    static Bitmap decode(File file, int reqWidth, int reqHeight, BitmapPool pool, BitmapFactory.Options options) {
+        String path = file.getPath();
+        // a sample size left over would scale the bounds reported below
+        options.inSampleSize = 1;
+        if (BitmapPool.isSupported()) {
+            clearReusable(options);
+        }
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        if (pool != null && BitmapPool.isSupported()) {
+            Bitmap bitmap = decodeReusing(path, options, pool);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * Only call from API 11, see {@link BitmapPool#isSupported()}
+     */
+    @SuppressLint("NewApi")
+    private static void clearReusable(BitmapFactory.Options options) {
+        options.inBitmap = null;
+    }
+
+    /**
+     * Decode into a pooled bitmap, only call from API 11, see {@link BitmapPool#isSupported()}
+     *
+     * @return the bitmap, null if no pooled one fits or the decoder refused it
+     */
+    @SuppressLint("NewApi")
+    private static Bitmap decodeReusing(String path, BitmapFactory.Options options, BitmapPool pool) {
+        options.inMutable = true;
+        Bitmap reusable = pool.get(options.outWidth, options.outHeight, options.inPreferredConfig,
+                options.inSampleSize);
+        if (reusable == null) {
+            return null;
+        }
+        options.inBitmap = reusable;
+        try {
+            Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        } catch (IllegalArgumentException e) {
+            // the decoder refused the bitmap, decode into a new one
+        }
+        options.inBitmap = null;
+        pool.put(reusable);
+        return null;
+    }
+
+    static int sampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.image;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Byte bounded pool of mutable bitmaps for BitmapFactory.Options.inBitmap
+ * <p/>
+ * Decoding into a pooled bitmap saves the allocation and the garbage collection of the
+ * pixel buffer, which is what makes scrolling through images stutter. Only used from
+ * API 11 on, before API 19 a bitmap is only reused for an image of the very same size
+ * and configuration, decoded without sampling.
+ * <p/>
+ * Never put a bitmap which may still be displayed.
+ */
+public class BitmapPool {
+    private final long maxSize;
+    // least recently added first
+    private final LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+    private long size;
+
+    /**
+     * @param maxSize Byte budget, 0 disables pooling
+     */
+    public BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Offer a bitmap nobody uses any more, the eldest ones are dropped over the budget
+     */
+    public void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int bytes = getByteCount(bitmap);
+        if (bytes > maxSize) {
+            return;
+        }
+        synchronized (this) {
+            bitmaps.addLast(bitmap);
+            size += bytes;
+            while (size > maxSize) {
+                size -= getByteCount(bitmaps.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Take a bitmap a decoder can reuse
+     *
+     * @param width      Width of the decoded image
+     * @param height     Height of the decoded image
+     * @param config     Configuration of the decoded image
+     * @param sampleSize inSampleSize of the decoding
+     * @return a bitmap removed from the pool, null if none fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config, int sampleSize) {
+        if (!isSupported() || bitmaps.isEmpty()) {
+            return null;
+        }
+        boolean kitKat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        if (!kitKat && sampleSize != 1) {
+            return null;
+        }
+        int scaledWidth = (width + sampleSize - 1) / sampleSize;
+        int scaledHeight = (height + sampleSize - 1) / sampleSize;
+        long needed = (long) scaledWidth * scaledHeight * bytesPerPixel(config);
+        Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            boolean fits = kitKat ? getByteCount(bitmap) >= needed
+                    : bitmap.getWidth() == scaledWidth && bitmap.getHeight() == scaledHeight
+                    && bitmap.getConfig() == config;
+            if (fits) {
+                iterator.remove();
+                size -= getByteCount(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void clear() {
+        bitmaps.clear();
+        size = 0;
+    }
+
+    /**
+     * @return bytes of the pixel buffer of a bitmap
+     */
+    @SuppressLint("NewApi")
+    public static int getByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            return bitmap.getByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.DisplayMetrics;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import com.github.commonclasses.R;
+import com.github.commonclasses.network.DownloadCache;
+import com.github.commonclasses.network.DownloadClient;
+import com.github.commonclasses.network.DownloadHandle;
+import com.github.commonclasses.network.DownloadScheduler;
+import com.github.commonclasses.network.DownloadUtils.DownloadListener;
+import com.github.commonclasses.storage.FileOperations;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads images from the network or local files into ImageViews, e.g. a
+ * {@link com.github.commonclasses.widget.RoundedImageView} in a list
+ * <p/>
+ * An image goes through these steps, stopping at the first one which has it:
+ * <ol>
+ * <li>a memory LRU of decoded bitmaps, bounded in bytes</li>
+ * <li>a {@link DownloadCache} on disk, a cached copy is used even if it's stale</li>
+ * <li>a download through a {@link DownloadScheduler}, which fills the disk cache</li>
+ * </ol>
+ * Files are decoded with an inSampleSize fitting the size of the view, into a bitmap of
+ * the {@link BitmapPool} when one fits (API 11+). Bitmaps leave the memory cache for the
+ * pool only once no view loaded by this loader shows them.
+ * <p/>
+ * Views asking for the same image at the same size share one request. Loading another
+ * image into a view, e.g. when a list recycles it, detaches it from its previous request,
+ * which is cancelled once no view waits for it any more.
+ * <p/>
+ * {@link #load} and {@link #cancel} must be called on the main thread.
+ * <p/>
+ * Permission Needed
+ * <p/>
+ * <uses-permission android:name="android.permission.INTERNET" />
+ */
+public class ImageLoader {
+    public static final long DEFAULT_DISK_CACHE_SIZE = 32 * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_DOWNLOADS = 4;
+
+    private static final String DISK_CACHE_DIR = "image_cache";
+    private static final String TEMP_DIR = "image_tmp";
+
+    private static ImageLoader defaultLoader;
+
+    private final DisplayMetrics displayMetrics;
+    private final MemoryCache memoryCache;
+    private final BitmapPool pool;
+    private final DownloadCache diskCache;
+    private final DownloadClient client;
+    private final DownloadScheduler scheduler;
+    private final ExecutorService executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final File tempDir;
+    private final AtomicLong tempSequence = new AtomicLong();
+    // main thread only
+    private final HashMap<String, Request> inFlight = new HashMap<String, Request>();
+    // bitmaps handed out by this loader, guarded by itself
+    private final WeakHashMap<Bitmap, Usage> usages = new WeakHashMap<Bitmap, Usage>();
+    private volatile int placeholderResId;
+    private volatile int errorResId;
+
+    /**
+     * Loader with an eighth of the heap for the memory cache, a sixteenth for the pool and
+     * {@link #DEFAULT_DISK_CACHE_SIZE} on disk
+     */
+    public ImageLoader(Context context) {
+        this(context, (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE),
+                Runtime.getRuntime().maxMemory() / 16, DEFAULT_DISK_CACHE_SIZE);
+    }
+
+    /**
+     * @param context         Context
+     * @param memoryCacheSize Byte budget of decoded bitmaps
+     * @param poolSize        Byte budget of reusable bitmaps, 0 disables reuse
+     * @param diskCacheSize   Byte budget of downloaded files
+     */
+    public ImageLoader(Context context, int memoryCacheSize, long poolSize, long diskCacheSize) {
+        context = context.getApplicationContext();
+        this.displayMetrics = context.getResources().getDisplayMetrics();
+        this.memoryCache = new MemoryCache(memoryCacheSize);
+        this.pool = new BitmapPool(poolSize);
+        this.diskCache = new DownloadCache(context, DISK_CACHE_DIR, diskCacheSize);
+        this.client = new DownloadClient();
+        client.setCache(diskCache);
+        this.scheduler = new DownloadScheduler(client, DEFAULT_DOWNLOADS, DownloadClient.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        this.executor = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ImageLoader-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.tempDir = FileOperations.getFile(context, TEMP_DIR);
+        File[] stale = tempDir.listFiles();
+        if (stale != null) {
+            // partial downloads of requests cancelled in a previous run
+            for (File file : stale) {
+                file.delete();
+            }
+        } else {
+            tempDir.mkdirs();
+        }
+    }
+
+    /**
+     * Get the shared loader with default sizes
+     *
+     * @param context Context
+     * @return the default loader
+     */
+    public static synchronized ImageLoader getDefault(Context context) {
+        if (defaultLoader == null) {
+            defaultLoader = new ImageLoader(context);
+        }
+        return defaultLoader;
+    }
+
+    /**
+     * @param resId Drawable shown while loading, 0 for none
+     */
+    public void setPlaceholder(int resId) {
+        this.placeholderResId = resId;
+    }
+
+    /**
+     * @param resId Drawable shown when loading fails, 0 to keep the placeholder
+     */
+    public void setErrorImage(int resId) {
+        this.errorResId = resId;
+    }
+
+    /**
+     * Load an image at the size of the view, or at the size of its layout params if it's not
+     * laid out yet, or at the size of the screen.
+     *
+     * @param uriStr http(s) url, file:// uri or file path
+     * @param view   Target view
+     */
+    public void load(String uriStr, ImageView view) {
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        int width = view.getWidth() > 0 ? view.getWidth() : params != null && params.width > 0
+                ? params.width : displayMetrics.widthPixels;
+        int height = view.getHeight() > 0 ? view.getHeight() : params != null && params.height > 0
+                ? params.height : displayMetrics.heightPixels;
+        load(uriStr, view, width, height);
+    }
+
+    /**
+     * Load an image decoded to at least the given size
+     *
+     * @param uriStr http(s) url, file:// uri or file path
+     * @param view   Target view
+     * @param width  Width to decode for, 0 for the full size
+     * @param height Height to decode for, 0 for the full size
+     */
+    public void load(String uriStr, ImageView view, int width, int height) {
+        String key = uriStr + '#' + width + 'x' + height;
+        Binding binding = (Binding) view.getTag(R.id.image_loader_target);
+        if (binding == null) {
+            binding = new Binding();
+            view.setTag(R.id.image_loader_target, binding);
+        } else if (binding.request != null && binding.request.key.equals(key)) {
+            return;
+        }
+        detach(view, binding);
+
+        // take the new bitmap before releasing the old one, they may be the same
+        Bitmap bitmap = acquireCached(key);
+        release(binding.bitmap);
+        binding.bitmap = bitmap;
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        setImageResource(view, placeholderResId);
+
+        Request request = inFlight.get(key);
+        if (request == null) {
+            request = new Request(key, uriStr, width, height);
+            inFlight.put(key, request);
+            request.start();
+        }
+        request.targets.add(new WeakReference<ImageView>(view));
+        binding.request = request;
+    }
+
+    /**
+     * Stop loading into a view, what it shows is kept
+     */
+    public void cancel(ImageView view) {
+        Binding binding = (Binding) view.getTag(R.id.image_loader_target);
+        if (binding != null) {
+            detach(view, binding);
+        }
+    }
+
+    /**
+     * Drop all decoded and reusable bitmaps, e.g. in onLowMemory()
+     */
+    public void clearMemory() {
+        memoryCache.evictAll();
+        pool.clear();
+    }
+
+    public DownloadCache getDiskCache() {
+        return diskCache;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return pool;
+    }
+
+    /**
+     * Cancel all requests and stop the worker threads, the loader can't be used any more.
+     */
+    public void shutdown() {
+        for (Request request : new ArrayList<Request>(inFlight.values())) {
+            request.cancel();
+        }
+        scheduler.shutdown();
+        executor.shutdownNow();
+        client.shutdown();
+    }
+
+    private void detach(ImageView view, Binding binding) {
+        Request request = binding.request;
+        if (request != null) {
+            binding.request = null;
+            request.remove(view);
+        }
+    }
+
+    private static void setImageResource(ImageView view, int resId) {
+        if (resId != 0) {
+            view.setImageResource(resId);
+        } else {
+            view.setImageDrawable(null);
+        }
+    }
+
+    private Bitmap acquireCached(String key) {
+        synchronized (usages) {
+            Bitmap bitmap = memoryCache.get(key);
+            if (bitmap != null) {
+                usage(bitmap).displays++;
+            }
+            return bitmap;
+        }
+    }
+
+    private void acquire(Bitmap bitmap) {
+        synchronized (usages) {
+            usage(bitmap).displays++;
+        }
+    }
+
+    /**
+     * A view or a request doesn't use the bitmap any more, pool it if nothing else does
+     */
+    private void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (usages) {
+            Usage usage = usages.get(bitmap);
+            if (usage == null || --usage.displays > 0 || usage.cached) {
+                return;
+            }
+            usages.remove(bitmap);
+        }
+        pool.put(bitmap);
+    }
+
+    private Usage usage(Bitmap bitmap) {
+        Usage usage = usages.get(bitmap);
+        if (usage == null) {
+            usage = new Usage();
+            usages.put(bitmap, usage);
+        }
+        return usage;
+    }
+
+    private static class Usage {
+        int displays;
+        boolean cached;
+    }
+
+    /**
+     * What the loader did with a view, kept in its tag
+     */
+    private static class Binding {
+        Request request;
+        Bitmap bitmap;
+    }
+
+    private class MemoryCache extends LruCache<String, Bitmap> {
+        MemoryCache(int maxSize) {
+            super(maxSize);
+        }
+
+        void add(String key, Bitmap bitmap) {
+            synchronized (usages) {
+                usage(bitmap).cached = true;
+            }
+            put(key, bitmap);
+        }
+
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return BitmapPool.getByteCount(value);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+            if (oldValue == newValue) {
+                return;
+            }
+            synchronized (usages) {
+                Usage usage = usages.get(oldValue);
+                if (usage == null) {
+                    return;
+                }
+                usage.cached = false;
+                if (usage.displays > 0) {
+                    return;
+                }
+                usages.remove(oldValue);
+            }
+            pool.put(oldValue);
+        }
+    }
+
+    /**
+     * Loading of one image at one size, shared by every view waiting for it
+     */
+    private class Request implements Runnable, DownloadListener {
+        final String key;
+        final String uriStr;
+        final int width;
+        final int height;
+        // main thread only
+        final ArrayList<WeakReference<ImageView>> targets = new ArrayList<WeakReference<ImageView>>();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        volatile boolean cancelled;
+        volatile Future<?> future;
+        volatile DownloadHandle download;
+        File temp;
+
+        Request(String key, String uriStr, int width, int height) {
+            this.key = key;
+            this.uriStr = uriStr;
+            this.width = width;
+            this.height = height;
+        }
+
+        void start() {
+            try {
+                future = executor.submit(this);
+            } catch (RejectedExecutionException e) {
+                cancel();
+            }
+        }
+
+        void remove(ImageView view) {
+            for (int i = targets.size() - 1; i >= 0; i--) {
+                ImageView target = targets.get(i).get();
+                if (target == null || target == view) {
+                    targets.remove(i);
+                }
+            }
+            if (targets.isEmpty()) {
+                cancel();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (inFlight.get(key) == this) {
+                inFlight.remove(key);
+            }
+            Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+            options.requestCancelDecode();
+            DownloadHandle download = this.download;
+            if (download != null) {
+                download.cancel(true);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            boolean remote = uriStr.startsWith("http://") || uriStr.startsWith("https://");
+            File file;
+            if (remote) {
+                file = diskCache.getFile(uriStr);
+            } else {
+                file = new File(uriStr.startsWith("file://") ? uriStr.substring("file://".length()) : uriStr);
+            }
+            if (file != null) {
+                Bitmap bitmap = BitmapDecoder.decode(file, width, height, pool, options);
+                if (bitmap != null || !remote || cancelled) {
+                    finish(bitmap);
+                    return;
+                }
+                // evicted or damaged meanwhile, download it again
+            }
+            temp = new File(tempDir, tempSequence.incrementAndGet() + ".tmp");
+            download = scheduler.enqueue(uriStr, temp, this);
+            if (cancelled) {
+                download.cancel(true);
+            }
+        }
+
+        @Override
+        public void downloading(int progress) {
+        }
+
+        @Override
+        public void downloaded(File dest) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Bitmap bitmap = cancelled ? null : BitmapDecoder.decode(temp, width, height, pool, options);
+                        temp.delete();
+                        finish(bitmap);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shut down, the views still get the error image
+                temp.delete();
+                finish(null);
+            }
+        }
+
+        @Override
+        public void exception(Exception e) {
+            temp.delete();
+            finish(null);
+        }
+
+        /**
+         * Cache the bitmap and hand it to the views on the main thread
+         */
+        private void finish(final Bitmap bitmap) {
+            if (bitmap != null) {
+                // held by this request until delivered, so eviction doesn't pool it
+                acquire(bitmap);
+                memoryCache.add(key, bitmap);
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(bitmap);
+                }
+            });
+        }
+
+        private void deliver(Bitmap bitmap) {
+            if (inFlight.get(key) == this) {
+                inFlight.remove(key);
+            }
+            for (WeakReference<ImageView> reference : targets) {
+                ImageView view = reference.get();
+                Binding binding = view == null ? null : (Binding) view.getTag(R.id.image_loader_target);
+                if (binding == null || binding.request != this) {
+                    continue;
+                }
+                binding.request = null;
+                if (bitmap != null) {
+                    acquire(bitmap);
+                    binding.bitmap = bitmap;
+                    view.setImageBitmap(bitmap);
+                } else if (errorResId != 0) {
+                    view.setImageResource(errorResId);
+                }
+            }
+            targets.clear();
+            release(bitmap);
+        }
+    }
+}
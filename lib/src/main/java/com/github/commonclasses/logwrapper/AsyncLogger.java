@@ -0,0 +1,310 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous backend for LogWrapper
+ * <p/>
+ * Log calls only claim a slot in a preallocated ring buffer with a CAS, fill it in and
+ * publish it, without locking or allocating. A single consumer thread drains the buffer in
+ * batches to the sinks. When the buffer is full the overflow policy decides whether events
+ * are dropped, whether the caller blocks, or whether only a sample of the events gets in
+ * once the buffer is half full.
+ * <p/>
+ * Install it with {@link LogWrapper#setAsyncLogger(AsyncLogger)}.
+ */
+public class AsyncLogger {
+    /**
+     * Drop events while the buffer is full
+     */
+    public static final int OVERFLOW_DROP = 0;
+    /**
+     * Make the caller wait while the buffer is full, unless its thread is interrupted
+     */
+    public static final int OVERFLOW_BLOCK = 1;
+    /**
+     * Keep one event out of the sample rate once the buffer is half full, drop events while
+     * it's full
+     */
+    public static final int OVERFLOW_SAMPLE = 2;
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 1000000L;
+    // a blocked producer parks this long first, doubling up to IDLE_PARK_NANOS
+    private static final long MIN_BLOCK_PARK_NANOS = 10000L;
+    private static final int MAX_KEPT_CAPACITY = 1024;
+
+    private final Slot[] slots;
+    private final int mask;
+    // sequence of the event published in each slot
+    private final AtomicLongArray published;
+    // next sequence to claim
+    private final AtomicLong claimed = new AtomicLong();
+    // next sequence to consume, every slot before it is free
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final int overflowPolicy;
+    private final LogSink[] sinks;
+    private final Thread consumer;
+    private volatile int sampleRate = 10;
+    // updated without synchronization, the sampling only needs to be roughly even
+    private int sampleCount;
+    private volatile boolean running = true;
+
+    private static class Slot {
+        long time;
+        int level;
+        String tag;
+        StackTraceElement caller;
+        String message;
+        final StringBuilder builder = new StringBuilder(128);
+    }
+
+    /**
+     * Logger with {@link #DEFAULT_CAPACITY} dropping events on overflow
+     */
+    public AsyncLogger(LogSink... sinks) {
+        this(DEFAULT_CAPACITY, OVERFLOW_DROP, sinks);
+    }
+
+    /**
+     * @param capacity       Events the buffer holds, rounded up to a power of two
+     * @param overflowPolicy {@link #OVERFLOW_DROP}, {@link #OVERFLOW_BLOCK} or
+     *                       {@link #OVERFLOW_SAMPLE}
+     * @param sinks          Where the events go
+     */
+    public AsyncLogger(int capacity, int overflowPolicy, LogSink... sinks) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity " + capacity);
+        }
+        if (overflowPolicy != OVERFLOW_DROP && overflowPolicy != OVERFLOW_BLOCK && overflowPolicy != OVERFLOW_SAMPLE) {
+            throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.sinks = sinks.clone();
+        this.consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AsyncLogger");
+        consumer.setDaemon(true);
+        if (overflowPolicy != OVERFLOW_BLOCK) {
+            // producers may wait on it otherwise
+            consumer.setPriority(Thread.MIN_PRIORITY);
+        }
+        consumer.start();
+    }
+
+    /**
+     * @param rate with {@link #OVERFLOW_SAMPLE}, keep one event out of rate once the buffer is
+     *             half full
+     */
+    public void setSampleRate(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        sampleRate = rate;
+    }
+
+    /**
+     * Enqueue an event, the message is either given or formatted from the pattern straight
+     * into the slot
+     *
+     * @return false if the event was dropped
+     */
+    boolean enqueue(int level, String tag, StackTraceElement caller, String message,
+                    String pattern, int count, Object arg1, Object arg2, Object[] args) {
+        if (!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int capacity = slots.length;
+        long sequence;
+        long parkNanos = 0;
+        while (true) {
+            sequence = claimed.get();
+            long used = sequence - consumed.get();
+            if (used >= capacity) {
+                if (overflowPolicy == OVERFLOW_BLOCK && running && !Thread.currentThread().isInterrupted()) {
+                    LockSupport.unpark(consumer);
+                    parkNanos = parkNanos == 0 ? MIN_BLOCK_PARK_NANOS : Math.min(parkNanos * 2, IDLE_PARK_NANOS);
+                    LockSupport.parkNanos(parkNanos);
+                    continue;
+                }
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (overflowPolicy == OVERFLOW_SAMPLE && used >= capacity / 2 && sampleCount++ % sampleRate != 0) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        int index = (int) sequence & mask;
+        Slot slot = slots[index];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.tag = tag;
+        slot.caller = caller;
+        try {
+            if (message != null) {
+                slot.message = message;
+            } else {
+                slot.message = null;
+                slot.builder.setLength(0);
+                LogFormatter.formatTo(slot.builder, pattern, count, arg1, arg2, args);
+            }
+        } catch (RuntimeException e) {
+            // an argument's toString() threw, the slot must still be published
+            slot.message = "<format failed: " + e + "> " + pattern;
+        } finally {
+            published.set(index, sequence);
+        }
+        return true;
+    }
+
+    private void drain() {
+        long next = consumed.get();
+        while (true) {
+            int count = 0;
+            while (count < BATCH_SIZE) {
+                int index = (int) next & mask;
+                if (published.get(index) != next) {
+                    break;
+                }
+                Slot slot = slots[index];
+                String message = slot.message != null ? slot.message : slot.builder.toString();
+                String caller = slot.caller == null ? null : LogWrapper.describe(slot.caller);
+                for (LogSink sink : sinks) {
+                    try {
+                        sink.write(slot.time, slot.level, slot.tag, caller, message);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+                slot.tag = null;
+                slot.caller = null;
+                slot.message = null;
+                if (slot.builder.capacity() > MAX_KEPT_CAPACITY) {
+                    slot.builder.setLength(0);
+                    slot.builder.trimToSize();
+                }
+                next++;
+                count++;
+            }
+            if (count > 0) {
+                consumed.lazySet(next);
+                for (LogSink sink : sinks) {
+                    try {
+                        sink.flush();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            } else if (!running && next == claimed.get()) {
+                break;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        for (LogSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wait until every event enqueued so far reached the sinks
+     */
+    public void flush() {
+        long target = claimed.get();
+        while (consumed.get() < target && consumer.isAlive()) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+        }
+    }
+
+    /**
+     * Drain the remaining events, close the sinks and stop the consumer thread
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return events dropped because the buffer was full, sampled out, or logged after
+     * shutdown
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return events waiting in the buffer
+     */
+    public long getQueued() {
+        return Math.max(0, claimed.get() - consumed.get());
+    }
+
+    /**
+     * @return events accepted since the logger was created
+     */
+    public long getEnqueued() {
+        return claimed.get();
+    }
+
+    /**
+     * @return sink writes which threw
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+}
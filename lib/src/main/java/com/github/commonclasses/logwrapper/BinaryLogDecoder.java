@@ -0,0 +1,145 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+import com.github.commonclasses.storage.FileOperations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns the segments written by {@link BinaryLogSink} back into text lines, in the same
+ * format as {@link RollingFileSink}
+ * <p/>
+ * Also runs on a desktop JVM: java BinaryLogDecoder dir-or-segment...
+ */
+public class BinaryLogDecoder {
+    private BinaryLogDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Writer out = new OutputStreamWriter(System.out, "UTF-8");
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isDirectory()) {
+                decodeDirectory(file, out);
+            } else {
+                decode(file, out);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Decode every segment in a directory, oldest first
+     *
+     * @return how many events were decoded
+     */
+    public static int decodeDirectory(File directory, Appendable out) throws IOException {
+        int events = 0;
+        for (File segment : BinaryLogSink.listSegments(directory)) {
+            events += decode(segment, out);
+        }
+        return events;
+    }
+
+    /**
+     * Decode one segment, stopping at its end or at the first damaged record
+     *
+     * @return how many events were decoded
+     */
+    public static int decode(File segment, Appendable out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(FileOperations.readFully(segment));
+        if (buffer.remaining() < BinaryLogSink.HEADER_SIZE || buffer.getInt() != BinaryLogSink.MAGIC) {
+            throw new IOException("Not a log segment: " + segment);
+        }
+        int version = buffer.getInt();
+        if (version != BinaryLogSink.VERSION) {
+            throw new IOException("Unknown log segment version " + version + ": " + segment);
+        }
+        long time = buffer.getLong();
+        Map<Long, String> tags = new HashMap<Long, String>();
+        Map<Long, String> callers = new HashMap<Long, String>();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        StringBuilder line = new StringBuilder(256);
+        int events = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                int type = buffer.get();
+                if (type == BinaryLogSink.RECORD_END) {
+                    break;
+                } else if (type == BinaryLogSink.RECORD_TAG) {
+                    tags.put(readVarLong(buffer), readString(buffer));
+                } else if (type == BinaryLogSink.RECORD_CALLER) {
+                    callers.put(readVarLong(buffer), readString(buffer));
+                } else if (type == BinaryLogSink.RECORD_EVENT) {
+                    long delta = readVarLong(buffer);
+                    time += (delta >>> 1) ^ -(delta & 1);
+                    int level = buffer.get();
+                    String tag = tags.get(readVarLong(buffer));
+                    long callerId = readVarLong(buffer);
+                    String message = readString(buffer);
+                    date.setTime(time);
+                    line.setLength(0);
+                    RollingFileSink.appendLine(line, dateFormat.format(date), level, tag,
+                            callerId == 0 ? null : callers.get(callerId), message);
+                    out.append(line);
+                    events++;
+                } else {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            // a record cut short at the end of the segment
+        }
+        return events;
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed variable length integer");
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = (int) readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalStateException("Malformed string");
+        }
+        String value = new String(buffer.array(), buffer.position(), length, "UTF-8");
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+import com.github.commonclasses.storage.MappedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes log events in a compact binary format to memory mapped segment files
+ * <p/>
+ * Each segment is a fixed size file which starts with a header holding the time of its
+ * first event. Tags and callers are interned: the first time one is used in a segment it's
+ * written as a definition record with a small id, later events only store the id. An event
+ * holds the time since the previous event, the level, the tag and caller ids and the UTF-8
+ * message, with variable length integers throughout. Segments decode on their own, with
+ * {@link BinaryLogDecoder}.
+ * <p/>
+ * Records are encoded into a buffer and copied into the mapping on {@link #flush()}, which
+ * {@link AsyncLogger} calls after every batch; from there they survive a crash of the
+ * process. When a segment is full the next one is started, and the oldest segments are
+ * deleted to keep the directory under the byte budget.
+ * <p/>
+ * Not thread safe, meant to be called from the AsyncLogger's consumer thread.
+ */
+public class BinaryLogSink implements LogSink {
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final long DEFAULT_BUDGET = 8 * 1024 * 1024;
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    // longer tags and callers are cut, messages are cut to an eighth of a segment
+    private static final int MAX_NAME_LENGTH = 1024;
+    // buffered records are copied to the mapping once they reach this size, even before a flush
+    private static final int MAX_PENDING = 64 * 1024;
+
+    static final int MAGIC = 0x4C574231;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final String SUFFIX = ".lwb";
+    static final int RECORD_END = 0;
+    static final int RECORD_TAG = 1;
+    static final int RECORD_CALLER = 2;
+    static final int RECORD_EVENT = 3;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long budget;
+    private final LinkedList<File> segments = new LinkedList<File>();
+    private final Map<String, Integer> tags = new HashMap<String, Integer>();
+    private final Map<String, Integer> callers = new HashMap<String, Integer>();
+    // encoded records not copied to the mapping yet
+    private byte[] record = new byte[MAX_PENDING + 256];
+    private int length;
+    private MappedFile segment;
+    private int sequence;
+    private int used;
+    private long lastTime;
+
+    public BinaryLogSink(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param directory   Directory of the segment files
+     * @param segmentSize Size of a segment file, at least 64KB
+     * @param budget      Bytes the segment files may take together, at least two segments
+     *                    are kept
+     */
+    public BinaryLogSink(File directory, int segmentSize, long budget) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at least " + MIN_SEGMENT_SIZE);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.budget = budget;
+        List<File> existing = listSegments(directory);
+        segments.addAll(existing);
+        if (!existing.isEmpty()) {
+            sequence = sequenceOf(existing.get(existing.size() - 1)) + 1;
+        }
+    }
+
+    /**
+     * @return the segment files in a directory, oldest first
+     */
+    static List<File> listSegments(File directory) {
+        List<File> files = new ArrayList<File>();
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.getName().endsWith(SUFFIX) && sequenceOf(child) >= 0) {
+                    files.add(child);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                int x = sequenceOf(a);
+                int y = sequenceOf(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    private static int sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void write(long time, int level, String tag, String caller, String message) throws IOException {
+        if (segment == null) {
+            roll(time);
+        }
+        int start = length;
+        long previousTime = lastTime;
+        encode(time, level, tag, caller, message);
+        if (used + length > segmentSize) {
+            // doesn't fit, drop it and start the next segment
+            length = start;
+            lastTime = previousTime;
+            flush();
+            roll(time);
+            encode(time, level, tag, caller, message);
+        }
+        if (length >= MAX_PENDING) {
+            flush();
+        }
+    }
+
+    /**
+     * Copy the buffered records into the mapping
+     */
+    @Override
+    public void flush() throws IOException {
+        if (length == 0) {
+            return;
+        }
+        // the first type byte goes last, records cut by a crash read as the end
+        segment.put(used + 1, record, 1, length - 1);
+        segment.putByte(used, record[0]);
+        used += length;
+        length = 0;
+    }
+
+    // called with no buffered records
+    private void roll(long time) throws IOException {
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+        File file = new File(directory, sequence++ + SUFFIX);
+        segments.add(file);
+        while (segments.size() > 2 && (long) segments.size() * segmentSize > budget) {
+            segments.removeFirst().delete();
+        }
+        segment = MappedFile.open(file, true, segmentSize, segmentSize);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.putLong(8, time);
+        used = HEADER_SIZE;
+        lastTime = time;
+        tags.clear();
+        callers.clear();
+    }
+
+    private void encode(long time, int level, String tag, String caller, String message) {
+        int tagId = intern(tags, RECORD_TAG, cut(String.valueOf(tag), MAX_NAME_LENGTH));
+        int callerId = caller == null ? 0 : intern(callers, RECORD_CALLER, cut(caller, MAX_NAME_LENGTH));
+        writeByte(RECORD_EVENT);
+        long delta = time - lastTime;
+        writeVarLong((delta << 1) ^ (delta >> 63));
+        writeByte(level);
+        writeVarLong(tagId);
+        writeVarLong(callerId);
+        writeString(cut(String.valueOf(message), segmentSize / 8));
+        lastTime = time;
+    }
+
+    private static String cut(String value, int maxLength) {
+        return value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+
+    private int intern(Map<String, Integer> names, int type, String name) {
+        Integer id = names.get(name);
+        if (id == null) {
+            // ids start at 1, caller id 0 means no caller
+            id = names.size() + 1;
+            names.put(name, id);
+            writeByte(type);
+            writeVarLong(id);
+            writeString(name);
+        }
+        return id;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > record.length) {
+            byte[] bigger = new byte[Math.max(record.length * 2, length + extra)];
+            System.arraycopy(record, 0, bigger, 0, length);
+            record = bigger;
+        }
+    }
+
+    private void writeByte(int value) {
+        ensure(1);
+        record[length++] = (byte) value;
+    }
+
+    private void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            record[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        record[length++] = (byte) value;
+    }
+
+    /**
+     * Length prefixed UTF-8, encoded by hand to avoid a temporary byte array
+     */
+    private void writeString(String value) {
+        int chars = value.length();
+        if (chars < 0x80) {
+            // one length byte, try the ASCII only case in a single pass
+            ensure(chars + 1);
+            int start = length;
+            record[length++] = (byte) chars;
+            int i = 0;
+            while (i < chars) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                record[length++] = (byte) c;
+                i++;
+            }
+            if (i == chars) {
+                return;
+            }
+            length = start;
+        }
+        int bytes = 0;
+        for (int i = 0; i < chars; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        writeVarLong(bytes);
+        ensure(bytes);
+        for (int i = 0; i < chars; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                record[length++] = (byte) c;
+            } else if (c < 0x800) {
+                record[length++] = (byte) (0xC0 | (c >> 6));
+                record[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                record[length++] = (byte) (0xF0 | (codePoint >> 18));
+                record[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                record[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                record[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                record[length++] = (byte) (0xE0 | (c >> 12));
+                record[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                record[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Copy the buffered records, write the mapped pages to the file and unmap the current
+     * segment
+     */
+    @Override
+    public void close() throws IOException {
+        if (segment != null) {
+            flush();
+            segment.close();
+            segment = null;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of the LogWrapper thresholds and throttles
+ * <p/>
+ * Changes build a new snapshot which replaces the old one, so a log call reads a single
+ * volatile field and never locks. {@link #minLevel} is the lowest level anything may be
+ * logged at, checking it alone rejects most disabled calls.
+ */
+final class LogConfig {
+    // caller locations with their own throttle, the map is cleared when it grows past this
+    private static final int MAX_CALLER_THROTTLES = 1024;
+
+    static final LogConfig DEFAULT = new LogConfig(true, Log.VERBOSE, Collections.<String, Integer>emptyMap(),
+            Collections.<String, LogThrottle>emptyMap(), 0, 0, new ConcurrentHashMap<String, LogThrottle>());
+
+    final boolean enabled;
+    final int level;
+    final Map<String, Integer> tagLevels;
+    final int minLevel;
+    final Map<String, LogThrottle> tagThrottles;
+    final double callerRate;
+    final int callerBurst;
+    // shared by the snapshots with the same caller rate, so other changes keep the limits
+    private final ConcurrentHashMap<String, LogThrottle> callerThrottles;
+
+    private LogConfig(boolean enabled, int level, Map<String, Integer> tagLevels,
+                      Map<String, LogThrottle> tagThrottles, double callerRate, int callerBurst,
+                      ConcurrentHashMap<String, LogThrottle> callerThrottles) {
+        this.enabled = enabled;
+        this.callerThrottles = callerThrottles;
+        this.level = level;
+        this.tagLevels = tagLevels;
+        this.tagThrottles = tagThrottles;
+        this.callerRate = callerRate;
+        this.callerBurst = callerBurst;
+        int min = level;
+        for (Integer tagLevel : tagLevels.values()) {
+            min = Math.min(min, tagLevel);
+        }
+        this.minLevel = enabled ? min : Integer.MAX_VALUE;
+    }
+
+    boolean isLoggable(int level, String tag) {
+        if (level < minLevel) {
+            return false;
+        }
+        if (tagLevels.isEmpty()) {
+            return level >= this.level;
+        }
+        Integer tagLevel = tagLevels.get(tag);
+        return level >= (tagLevel == null ? this.level : tagLevel);
+    }
+
+    /**
+     * @return true if a tag may have its own level or throttle
+     */
+    boolean hasTagSettings() {
+        return !tagLevels.isEmpty() || !tagThrottles.isEmpty();
+    }
+
+    /**
+     * @return the throttle of the tag, null if it has none
+     */
+    LogThrottle getTagThrottle(String tag) {
+        return tagThrottles.isEmpty() ? null : tagThrottles.get(tag);
+    }
+
+    /**
+     * @return the throttle of the caller location if callers are limited, else null
+     */
+    LogThrottle getCallerThrottle(StackTraceElement caller) {
+        if (callerRate <= 0 || caller == null) {
+            return null;
+        }
+        String location = caller.getClassName() + ":" + caller.getLineNumber();
+        LogThrottle throttle = callerThrottles.get(location);
+        if (throttle == null) {
+            if (callerThrottles.size() >= MAX_CALLER_THROTTLES) {
+                callerThrottles.clear();
+            }
+            throttle = LogThrottle.perSecond(callerRate, callerBurst);
+            LogThrottle existing = callerThrottles.putIfAbsent(location, throttle);
+            if (existing != null) {
+                throttle = existing;
+            }
+        }
+        return throttle;
+    }
+
+    LogConfig withEnabled(boolean enabled) {
+        return new LogConfig(enabled, level, tagLevels, tagThrottles, callerRate, callerBurst, callerThrottles);
+    }
+
+    LogConfig withLevel(int level) {
+        return new LogConfig(enabled, level, tagLevels, tagThrottles, callerRate, callerBurst, callerThrottles);
+    }
+
+    LogConfig withTagLevel(String tag, Integer level) {
+        Map<String, Integer> levels = new HashMap<String, Integer>(tagLevels);
+        if (level == null) {
+            levels.remove(tag);
+        } else {
+            levels.put(tag, level);
+        }
+        return new LogConfig(enabled, this.level, Collections.unmodifiableMap(levels), tagThrottles,
+                callerRate, callerBurst, callerThrottles);
+    }
+
+    LogConfig withTagThrottle(String tag, LogThrottle throttle) {
+        Map<String, LogThrottle> throttles = new HashMap<String, LogThrottle>(tagThrottles);
+        if (throttle == null) {
+            throttles.remove(tag);
+        } else {
+            throttles.put(tag, throttle);
+        }
+        return new LogConfig(enabled, level, tagLevels, Collections.unmodifiableMap(throttles),
+                callerRate, callerBurst, callerThrottles);
+    }
+
+    LogConfig withCallerRate(double callerRate, int callerBurst) {
+        ConcurrentHashMap<String, LogThrottle> throttles = callerRate == this.callerRate
+                && callerBurst == this.callerBurst ? callerThrottles : new ConcurrentHashMap<String, LogThrottle>();
+        return new LogConfig(enabled, level, tagLevels, tagThrottles, callerRate, callerBurst, throttles);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * Substitutes "{}" placeholders with arguments, reusing a StringBuilder per thread
+ * <p/>
+ * Arguments are passed as one or two objects or as an array, so the common calls don't
+ * allocate a varargs array. A Throwable left over after the placeholders is appended with
+ * its stack trace.
+ */
+final class LogFormatter {
+    private static final int INITIAL_CAPACITY = 256;
+    // larger builders are dropped after use instead of being kept by the thread
+    private static final int MAX_KEPT_CAPACITY = 4096;
+
+    private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_CAPACITY);
+        }
+    };
+
+    private LogFormatter() {
+    }
+
+    static String format(String pattern, int count, Object arg1, Object arg2, Object[] args) {
+        StringBuilder builder = BUILDER.get();
+        builder.setLength(0);
+        formatTo(builder, pattern, count, arg1, arg2, args);
+        String message = builder.toString();
+        if (builder.capacity() > MAX_KEPT_CAPACITY) {
+            BUILDER.set(new StringBuilder(INITIAL_CAPACITY));
+        }
+        return message;
+    }
+
+    /**
+     * @param count how many arguments, taken from args if it's not null, else from arg1
+     *              and arg2
+     */
+    static void formatTo(StringBuilder builder, String pattern, int count, Object arg1, Object arg2, Object[] args) {
+        if (pattern == null) {
+            builder.append("null");
+            return;
+        }
+        int start = 0;
+        int used = 0;
+        while (used < count) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            builder.append(pattern, start, placeholder);
+            appendArgument(builder, argument(used, arg1, arg2, args));
+            start = placeholder + 2;
+            used++;
+        }
+        builder.append(pattern, start, pattern.length());
+        if (used < count) {
+            Object last = argument(count - 1, arg1, arg2, args);
+            if (last instanceof Throwable) {
+                StringWriter trace = new StringWriter();
+                ((Throwable) last).printStackTrace(new PrintWriter(trace));
+                builder.append('\n').append(trace);
+            }
+        }
+    }
+
+    private static Object argument(int index, Object arg1, Object arg2, Object[] args) {
+        if (args != null) {
+            return args[index];
+        }
+        return index == 0 ? arg1 : arg2;
+    }
+
+    private static void appendArgument(StringBuilder builder, Object argument) {
+        if (argument instanceof Object[]) {
+            builder.append(Arrays.deepToString((Object[]) argument));
+        } else if (argument instanceof int[]) {
+            builder.append(Arrays.toString((int[]) argument));
+        } else if (argument instanceof long[]) {
+            builder.append(Arrays.toString((long[]) argument));
+        } else if (argument instanceof byte[]) {
+            builder.append(Arrays.toString((byte[]) argument));
+        } else {
+            builder.append(argument);
+        }
+    }
+}
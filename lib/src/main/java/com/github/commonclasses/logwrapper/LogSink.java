@@ -0,0 +1,45 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+import java.io.IOException;
+
+/**
+ * Destination of the log events drained by {@link AsyncLogger}
+ * <p/>
+ * All methods are called from the logger's single consumer thread.
+ */
+public interface LogSink {
+    /**
+     * @param time    System.currentTimeMillis() when the event was logged
+     * @param level   android.util.Log priority
+     * @param tag     Tag
+     * @param caller  "method()-line" of the caller, or null
+     * @param message Message
+     */
+    public void write(long time, int level, String tag, String caller, String message) throws IOException;
+
+    /**
+     * Called after each batch of events
+     */
+    public void flush() throws IOException;
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,73 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+/**
+ * Precomputed log tag
+ * <p/>
+ * Logging through a LogTag never captures the stack to find the caller, keep one in a
+ * static final field:
+ * <p/>
+ * private static final LogTag TAG = LogTag.of(MyActivity.class);
+ * <p/>
+ * Tags with a throttle limit only the calls made through them, which may share their name
+ * with other LogTags.
+ */
+public final class LogTag {
+    private final String name;
+    private final LogThrottle throttle;
+
+    public LogTag(String name) {
+        this(name, null);
+    }
+
+    /**
+     * @param name     Tag
+     * @param throttle Limits the messages logged through this LogTag, e.g. to keep a single
+     *                 call site in a hot loop from flooding the log; null for none
+     */
+    public LogTag(String name, LogThrottle throttle) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+        this.name = name;
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return a tag named after the class' simple name
+     */
+    public static LogTag of(Class<?> cls) {
+        return new LogTag(cls.getSimpleName());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LogThrottle getThrottle() {
+        return throttle;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often log statements get through, by rate or by sampling
+ * <p/>
+ * The rate limit is a token bucket kept as a single "theoretical arrival time" which each
+ * accepted message pushes forward by one interval, so a check is one read and at most one
+ * CAS. Messages over the limit are only counted; the next accepted one is preceded by a
+ * "suppressed N similar messages" line. Sampled out messages are dropped silently.
+ * <p/>
+ * Give a {@link LogTag} its own throttle to limit a single call site without capturing the
+ * stack, or use {@link LogWrapper#setRateLimit(String, double, int)} and
+ * {@link LogWrapper#setSampling(String, double)} for whole tags.
+ */
+public final class LogThrottle {
+    private final long interval;
+    private final long tolerance;
+    private final int threshold;
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong suppressed = new AtomicLong();
+    // updated without synchronization, the samples only need to look random
+    private int seed;
+
+    private LogThrottle(long interval, long tolerance, int threshold) {
+        this.interval = interval;
+        this.tolerance = tolerance;
+        this.threshold = threshold;
+        this.seed = (int) System.nanoTime() | 1;
+    }
+
+    /**
+     * Let up to permitsPerSecond messages through on average, with bursts of up to burst
+     * messages
+     */
+    public static LogThrottle perSecond(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        long interval = Math.max(1, (long) (1000000000L / permitsPerSecond));
+        return new LogThrottle(interval, interval * (burst - 1), 0);
+    }
+
+    /**
+     * Let each message through with the given probability
+     */
+    public static LogThrottle sampled(double probability) {
+        if (probability <= 0 || probability > 1) {
+            throw new IllegalArgumentException("Probability must be in (0, 1]");
+        }
+        // compared against 31 random bits
+        return new LogThrottle(0, 0, (int) (probability * Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return true if the message may be logged, else it's counted as suppressed if it's over
+     * the rate limit
+     */
+    public boolean tryAcquire() {
+        if (interval == 0) {
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return (x >>> 1) <= threshold;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = arrival.get();
+            if (current != Long.MIN_VALUE && current - tolerance > now) {
+                break;
+            }
+            long next = (current == Long.MIN_VALUE || current < now ? now : current) + interval;
+            if (arrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return messages suppressed since the last call
+     */
+    public long takeSuppressed() {
+        return suppressed.get() == 0 ? 0 : suppressed.getAndSet(0);
+    }
+}
@@ -20,77 +20,465 @@
 package com.github.commonclasses.logwrapper;
 
 import android.util.Log;
+import com.github.commonclasses.metrics.Counter;
+import com.github.commonclasses.metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Custom Android LogWrapper
+ * <p/>
+ * Calls without a tag use the caller's file name as tag, and every call prefixes the message
+ * with the caller's method and line number. Finding the caller means capturing the stack,
+ * which is expensive, so it's done at most once per call and can be turned off or sampled
+ * with {@link #setCallerInfo(int)}. Calls with a {@link LogTag} never capture the stack.
+ * <p/>
+ * Levels can be filtered globally and per tag. The LogTag calls also take "{}" patterns
+ * or a {@link MessageSupplier}, so a message is only built when it's going to be logged:
+ * <p/>
+ * LogWrapper.d(TAG, "x={} y={}", x, y);
+ * <p/>
+ * Tags or caller locations can be rate limited or sampled with a {@link LogThrottle}, a
+ * LogTag can also carry its own.
+ * <p/>
+ * Output goes to android.util.Log on the caller's thread, or through an
+ * {@link AsyncLogger} if one is set.
+ * <p/>
+ * Messages written per level and messages dropped by throttles are reported as "log.*"
+ * to {@link Metrics} when it's enabled.
  */
 public class LogWrapper {
-    private static boolean LOGGING_ENABLED = true;
-    private static final int STACK_TRACE_LEVELS_UP = 5;
+    /**
+     * Capture the caller on every call
+     */
+    public static final int CALLER_ALWAYS = 0;
+    /**
+     * Never capture the caller, calls without a tag use the default tag
+     */
+    public static final int CALLER_NONE = 1;
+    /**
+     * Capture the caller on one call out of the sample rate
+     */
+    public static final int CALLER_SAMPLED = 2;
+
+    private static final String DEFAULT_TAG = "LogWrapper";
+
+    // indexed by level, Log.VERBOSE (2) to Log.ASSERT (7)
+    private static final Counter[] WRITTEN = {
+            null, null,
+            Metrics.counter("log.verbose"),
+            Metrics.counter("log.debug"),
+            Metrics.counter("log.info"),
+            Metrics.counter("log.warn"),
+            Metrics.counter("log.error"),
+            Metrics.counter("log.assert")
+    };
+    private static final Counter THROTTLED = Metrics.counter("log.throttled");
+
+    private static volatile LogConfig config = LogConfig.DEFAULT;
+    private static volatile AsyncLogger asyncLogger;
+
+    private static volatile int callerMode = CALLER_ALWAYS;
+    private static volatile int callerSampleRate = 100;
+    private static final AtomicInteger callerSampleCount = new AtomicInteger();
 
     /**
      * Control the LogWrapper on or off
      * @param on true or false
      */
-    public static void control(boolean on) {
-        LOGGING_ENABLED = on;
+    public static synchronized void control(boolean on) {
+        config = config.withEnabled(on);
+    }
+
+    /**
+     * Set the lowest level logged for tags without their own level
+     *
+     * @param level android.util.Log priority, e.g. Log.INFO
+     */
+    public static synchronized void setLevel(int level) {
+        config = config.withLevel(level);
+    }
+
+    /**
+     * Set the lowest level logged for one tag
+     *
+     * @param tag   Tag
+     * @param level android.util.Log priority, e.g. Log.INFO
+     */
+    public static synchronized void setLevel(String tag, int level) {
+        config = config.withTagLevel(tag, level);
+    }
+
+    /**
+     * Let a tag use the global level again
+     */
+    public static synchronized void clearLevel(String tag) {
+        config = config.withTagLevel(tag, null);
+    }
+
+    /**
+     * @return true if a message at this level and tag would be logged, to guard code which
+     * only prepares log output
+     */
+    public static boolean isLoggable(int level, LogTag tag) {
+        return config.isLoggable(level, tag.getName());
+    }
+
+    /**
+     * Let up to permitsPerSecond messages of a tag through on average, with bursts of up to
+     * burst messages; the rest are counted and summarized with the next message
+     */
+    public static synchronized void setRateLimit(String tag, double permitsPerSecond, int burst) {
+        config = config.withTagThrottle(tag, LogThrottle.perSecond(permitsPerSecond, burst));
+    }
+
+    /**
+     * Let each message of a tag through with the given probability
+     */
+    public static synchronized void setSampling(String tag, double probability) {
+        config = config.withTagThrottle(tag, LogThrottle.sampled(probability));
+    }
+
+    /**
+     * Remove the rate limit or sampling of a tag
+     */
+    public static synchronized void clearThrottle(String tag) {
+        config = config.withTagThrottle(tag, null);
+    }
+
+    /**
+     * Rate limit every caller location (class and line) on its own, for calls which capture
+     * the caller and whose tag has no throttle
+     *
+     * @param permitsPerSecond average rate, 0 to turn it off
+     * @param burst            messages let through at once
+     */
+    public static synchronized void setCallerRateLimit(double permitsPerSecond, int burst) {
+        if (permitsPerSecond > 0 && burst <= 0) {
+            throw new IllegalArgumentException("Burst must be positive");
+        }
+        config = config.withCallerRate(permitsPerSecond, burst);
+    }
+
+    /**
+     * Send the output through an asynchronous logger, or back to android.util.Log on the
+     * caller's thread with null. The previous logger is not shut down.
+     */
+    public static void setAsyncLogger(AsyncLogger logger) {
+        asyncLogger = logger;
+    }
+
+    /**
+     * Choose when the caller is captured
+     *
+     * @param mode {@link #CALLER_ALWAYS}, {@link #CALLER_NONE} or {@link #CALLER_SAMPLED}
+     */
+    public static void setCallerInfo(int mode) {
+        if (mode != CALLER_ALWAYS && mode != CALLER_NONE && mode != CALLER_SAMPLED) {
+            throw new IllegalArgumentException("Unknown caller info mode " + mode);
+        }
+        callerMode = mode;
+    }
+
+    /**
+     * @param rate capture the caller on one call out of rate in {@link #CALLER_SAMPLED} mode
+     */
+    public static void setCallerSampleRate(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        callerSampleRate = rate;
     }
 
     public static void v(String msg) {
-        if (!LOGGING_ENABLED) return;
-        Log.v(getClassName(), getAll() + msg);
+        if (Log.VERBOSE < config.minLevel) return;
+        printWithCaller(Log.VERBOSE, null, msg);
     }
 
     public static void v(String TAG, String msg) {
-        if (!LOGGING_ENABLED) return;
-        Log.v(TAG, getAll() + msg);
+        if (Log.VERBOSE < config.minLevel) return;
+        printWithCaller(Log.VERBOSE, TAG, msg);
+    }
+
+    public static void v(LogTag tag, String msg) {
+        if (Log.VERBOSE < config.minLevel) return;
+        print(Log.VERBOSE, tag.getName(), tag.getThrottle(), null, msg);
+    }
+
+    public static void v(LogTag tag, String pattern, Object arg) {
+        if (Log.VERBOSE < config.minLevel) return;
+        printf(Log.VERBOSE, tag, pattern, 1, arg, null, null);
+    }
+
+    public static void v(LogTag tag, String pattern, Object arg1, Object arg2) {
+        if (Log.VERBOSE < config.minLevel) return;
+        printf(Log.VERBOSE, tag, pattern, 2, arg1, arg2, null);
+    }
+
+    public static void v(LogTag tag, String pattern, Object... args) {
+        if (Log.VERBOSE < config.minLevel) return;
+        printf(Log.VERBOSE, tag, pattern, args.length, null, null, args);
+    }
+
+    public static void v(LogTag tag, MessageSupplier supplier) {
+        if (Log.VERBOSE < config.minLevel) return;
+        if (admit(Log.VERBOSE, tag.getName(), tag.getThrottle())) {
+            write(Log.VERBOSE, tag.getName(), null, supplier.get());
+        }
     }
 
     public static void d(String msg) {
-        if (!LOGGING_ENABLED) return;
-        Log.d(getClassName(), getAll() + msg);
+        if (Log.DEBUG < config.minLevel) return;
+        printWithCaller(Log.DEBUG, null, msg);
     }
 
     public static void d(String TAG, String msg) {
-        if (!LOGGING_ENABLED) return;
-        Log.d(TAG, getAll() + msg);
+        if (Log.DEBUG < config.minLevel) return;
+        printWithCaller(Log.DEBUG, TAG, msg);
+    }
+
+    public static void d(LogTag tag, String msg) {
+        if (Log.DEBUG < config.minLevel) return;
+        print(Log.DEBUG, tag.getName(), tag.getThrottle(), null, msg);
+    }
+
+    public static void d(LogTag tag, String pattern, Object arg) {
+        if (Log.DEBUG < config.minLevel) return;
+        printf(Log.DEBUG, tag, pattern, 1, arg, null, null);
+    }
+
+    public static void d(LogTag tag, String pattern, Object arg1, Object arg2) {
+        if (Log.DEBUG < config.minLevel) return;
+        printf(Log.DEBUG, tag, pattern, 2, arg1, arg2, null);
+    }
+
+    public static void d(LogTag tag, String pattern, Object... args) {
+        if (Log.DEBUG < config.minLevel) return;
+        printf(Log.DEBUG, tag, pattern, args.length, null, null, args);
+    }
+
+    public static void d(LogTag tag, MessageSupplier supplier) {
+        if (Log.DEBUG < config.minLevel) return;
+        if (admit(Log.DEBUG, tag.getName(), tag.getThrottle())) {
+            write(Log.DEBUG, tag.getName(), null, supplier.get());
+        }
     }
 
     public static void e(String msg) {
-        if (!LOGGING_ENABLED) return;
-        Log.e(getClassName(), getAll() + msg);
+        if (Log.ERROR < config.minLevel) return;
+        printWithCaller(Log.ERROR, null, msg);
     }
 
     public static void e(String TAG, String msg) {
-        if (!LOGGING_ENABLED) return;
-        Log.e(TAG, getAll() + msg);
+        if (Log.ERROR < config.minLevel) return;
+        printWithCaller(Log.ERROR, TAG, msg);
+    }
+
+    public static void e(LogTag tag, String msg) {
+        if (Log.ERROR < config.minLevel) return;
+        print(Log.ERROR, tag.getName(), tag.getThrottle(), null, msg);
+    }
+
+    public static void e(LogTag tag, String pattern, Object arg) {
+        if (Log.ERROR < config.minLevel) return;
+        printf(Log.ERROR, tag, pattern, 1, arg, null, null);
+    }
+
+    public static void e(LogTag tag, String pattern, Object arg1, Object arg2) {
+        if (Log.ERROR < config.minLevel) return;
+        printf(Log.ERROR, tag, pattern, 2, arg1, arg2, null);
+    }
+
+    public static void e(LogTag tag, String pattern, Object... args) {
+        if (Log.ERROR < config.minLevel) return;
+        printf(Log.ERROR, tag, pattern, args.length, null, null, args);
+    }
+
+    public static void e(LogTag tag, MessageSupplier supplier) {
+        if (Log.ERROR < config.minLevel) return;
+        if (admit(Log.ERROR, tag.getName(), tag.getThrottle())) {
+            write(Log.ERROR, tag.getName(), null, supplier.get());
+        }
     }
 
     public static void i(String msg) {
-        if (!LOGGING_ENABLED) return;
-        Log.i(getClassName(), getAll() + msg);
+        if (Log.INFO < config.minLevel) return;
+        printWithCaller(Log.INFO, null, msg);
     }
 
     public static void i(String TAG, String msg) {
-        if (!LOGGING_ENABLED) return;
-        Log.i(TAG, getAll() + msg);
+        if (Log.INFO < config.minLevel) return;
+        printWithCaller(Log.INFO, TAG, msg);
     }
 
-    private static int getLineNumber() {
-        return Thread.currentThread().getStackTrace()[STACK_TRACE_LEVELS_UP].getLineNumber();
+    public static void i(LogTag tag, String msg) {
+        if (Log.INFO < config.minLevel) return;
+        print(Log.INFO, tag.getName(), tag.getThrottle(), null, msg);
     }
 
-    private static String getClassName() {
-        String fileName = Thread.currentThread().getStackTrace()[STACK_TRACE_LEVELS_UP].getFileName();
+    public static void i(LogTag tag, String pattern, Object arg) {
+        if (Log.INFO < config.minLevel) return;
+        printf(Log.INFO, tag, pattern, 1, arg, null, null);
+    }
+
+    public static void i(LogTag tag, String pattern, Object arg1, Object arg2) {
+        if (Log.INFO < config.minLevel) return;
+        printf(Log.INFO, tag, pattern, 2, arg1, arg2, null);
+    }
+
+    public static void i(LogTag tag, String pattern, Object... args) {
+        if (Log.INFO < config.minLevel) return;
+        printf(Log.INFO, tag, pattern, args.length, null, null, args);
+    }
+
+    public static void i(LogTag tag, MessageSupplier supplier) {
+        if (Log.INFO < config.minLevel) return;
+        if (admit(Log.INFO, tag.getName(), tag.getThrottle())) {
+            write(Log.INFO, tag.getName(), null, supplier.get());
+        }
+    }
+
+    private static void print(int level, String tag, LogThrottle throttle, StackTraceElement caller, String msg) {
+        if (!admit(level, tag, throttle)) return;
+        write(level, tag, caller, msg);
+    }
+
+    /**
+     * Log with the caller's location. The stack is captured after the level and the tag's
+     * throttle let the message through, earlier only when the decision depends on it: per
+     * tag settings for a tag taken from the caller, or a caller throttle.
+     *
+     * @param tag Tag, null for the caller's file name
+     */
+    private static void printWithCaller(int level, String tag, String msg) {
+        LogConfig current = config;
+        StackTraceElement caller = null;
+        boolean captured = false;
+        if (tag == null && current.hasTagSettings()) {
+            caller = getCaller();
+            captured = true;
+            tag = getClassName(caller);
+        }
+        // without per tag settings the tag doesn't matter here
+        if (!current.isLoggable(level, tag == null ? DEFAULT_TAG : tag)) return;
+        LogThrottle throttle = tag == null ? null : current.getTagThrottle(tag);
+        if (throttle == null && current.callerRate > 0) {
+            if (!captured) {
+                caller = getCaller();
+                captured = true;
+            }
+            throttle = current.getCallerThrottle(caller);
+        }
+        if (tag == null && captured) {
+            tag = getClassName(caller);
+        }
+        if (!acquire(level, tag, throttle)) return;
+        if (!captured) {
+            caller = getCaller();
+        }
+        write(level, tag == null ? getClassName(caller) : tag, caller, msg);
+    }
+
+    private static void printf(int level, LogTag tag, String pattern, int count,
+                               Object arg1, Object arg2, Object[] args) {
+        String name = tag.getName();
+        if (!admit(level, name, tag.getThrottle())) return;
+        AsyncLogger logger = asyncLogger;
+        if (logger != null) {
+            // formatted into the logger's slot
+            logger.enqueue(level, name, null, null, pattern, count, arg1, arg2, args);
+        } else {
+            Log.println(level, name, LogFormatter.format(pattern, count, arg1, arg2, args));
+        }
+    }
+
+    /**
+     * Check the level and the throttle, the tag's own one or else the configured one, and
+     * report what the throttle suppressed before this message
+     */
+    private static boolean admit(int level, String tag, LogThrottle throttle) {
+        LogConfig current = config;
+        if (!current.isLoggable(level, tag)) return false;
+        if (throttle == null) {
+            throttle = current.getTagThrottle(tag);
+        }
+        return acquire(level, tag, throttle);
+    }
+
+    /**
+     * Take a permit of the throttle, if there is one, and count the message
+     */
+    private static boolean acquire(int level, String tag, LogThrottle throttle) {
+        if (throttle != null) {
+            if (!throttle.tryAcquire()) {
+                THROTTLED.increment();
+                return false;
+            }
+            long suppressed = throttle.takeSuppressed();
+            if (suppressed > 0) {
+                write(level, tag, null, "suppressed " + suppressed + " similar messages");
+            }
+        }
+        if (level >= Log.VERBOSE && level < WRITTEN.length) {
+            WRITTEN[level].increment();
+        }
+        return true;
+    }
+
+    private static void write(int level, String tag, StackTraceElement caller, String msg) {
+        AsyncLogger logger = asyncLogger;
+        if (logger != null) {
+            logger.enqueue(level, tag, caller, msg, null, 0, null, null, null);
+        } else {
+            Log.println(level, tag, caller == null ? msg : getAll(caller) + msg);
+        }
+    }
+
+    /**
+     * Capture the stack once and find the first frame outside of LogWrapper
+     *
+     * @return the caller, or null if it's not captured for this call
+     */
+    private static StackTraceElement getCaller() {
+        int mode = callerMode;
+        if (mode == CALLER_NONE) {
+            return null;
+        }
+        if (mode == CALLER_SAMPLED
+                && (callerSampleCount.getAndIncrement() & Integer.MAX_VALUE) % callerSampleRate != 0) {
+            return null;
+        }
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        String name = LogWrapper.class.getName();
+        for (StackTraceElement element : stack) {
+            if (!element.getClassName().equals(name)) {
+                return element;
+            }
+        }
+        return null;
+    }
 
-        return fileName.substring(0, fileName.length() - 5);
+    private static String getClassName(StackTraceElement caller) {
+        if (caller == null) {
+            return DEFAULT_TAG;
+        }
+        String fileName = caller.getFileName();
+        if (fileName == null) {
+            String className = caller.getClassName();
+            return className.substring(className.lastIndexOf('.') + 1);
+        }
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
     }
 
-    private static String getMethodName() {
-        return Thread.currentThread().getStackTrace()[STACK_TRACE_LEVELS_UP].getMethodName();
+    private static String getAll(StackTraceElement caller) {
+        if (caller == null) {
+            return "";
+        }
+        return "[" + describe(caller) + "]: ";
     }
 
-    private static String getAll() {
-        return "[" + getMethodName() + "()-" + getLineNumber() + "]: ";
+    static String describe(StackTraceElement caller) {
+        return caller.getMethodName() + "()-" + caller.getLineNumber();
     }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.logwrapper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes log events as text lines to a file, rolled over to numbered backups
+ * <p/>
+ * When the file grows past the size limit it's renamed to "name.1", the previous "name.1"
+ * to "name.2" and so on, keeping at most the given number of backups. The size is counted
+ * in characters, which is about the size in bytes for ASCII logs.
+ */
+public class RollingFileSink implements LogSink {
+    private static final char[] LEVELS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+    private final File file;
+    private final long maxSize;
+    private final int maxBackups;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+    private final Date date = new Date();
+    private long formattedTime = -1;
+    private String formattedDate;
+    private final StringBuilder line = new StringBuilder(256);
+    private Writer writer;
+    private long size;
+
+    /**
+     * @param file       Log file
+     * @param maxSize    Size after which the file is rolled over
+     * @param maxBackups Rolled over files to keep
+     */
+    public RollingFileSink(File file, long maxSize, int maxBackups) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.maxBackups = maxBackups;
+        open();
+    }
+
+    private void open() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        size = file.length();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 16 * 1024);
+    }
+
+    @Override
+    public void write(long time, int level, String tag, String caller, String message) throws IOException {
+        if (time != formattedTime) {
+            date.setTime(time);
+            formattedDate = dateFormat.format(date);
+            formattedTime = time;
+        }
+        line.setLength(0);
+        appendLine(line, formattedDate, level, tag, caller, message);
+        writer.append(line);
+        size += line.length();
+        if (size >= maxSize) {
+            roll();
+        }
+    }
+
+    static void appendLine(StringBuilder line, String date, int level, String tag, String caller, String message) {
+        line.append(date).append(' ')
+                .append(level >= 0 && level < LEVELS.length ? LEVELS[level] : '?').append('/')
+                .append(tag).append(": ");
+        if (caller != null) {
+            line.append('[').append(caller).append("]: ");
+        }
+        line.append(message).append('\n');
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        File oldest = backup(maxBackups);
+        if (oldest.exists()) {
+            oldest.delete();
+        }
+        for (int i = maxBackups - 1; i >= 1; i--) {
+            File backup = backup(i);
+            if (backup.exists()) {
+                backup.renameTo(backup(i + 1));
+            }
+        }
+        if (maxBackups > 0) {
+            file.renameTo(backup(1));
+        } else {
+            file.delete();
+        }
+        open();
+    }
+
+    private File backup(int index) {
+        return new File(file.getPath() + "." + index);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic counter for hot paths
+ * <p/>
+ * The count is split into cells picked by thread, each on its own cache line, so threads
+ * counting at the same time don't fight over one value. Reading sums the cells.
+ */
+public final class Counter {
+    // longs per 64 byte cache line
+    private static final int PADDING = 8;
+    private static final int MAX_CELLS = 64;
+
+    private final String name;
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    Counter(String name) {
+        this.name = name;
+        int count = 1;
+        int wanted = Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_CELLS);
+        while (count < wanted) {
+            count <<= 1;
+        }
+        this.cells = new AtomicLongArray(count * PADDING);
+        this.mask = count - 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        if (!Metrics.enabled) {
+            return;
+        }
+        // spread consecutive thread ids over the cells
+        int cell = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 58) & mask;
+        cells.addAndGet(cell * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency (or size) distribution in fixed power of two buckets
+ * <p/>
+ * Bucket 0 counts zero, bucket i counts values in [2^(i-1), 2^i), the last bucket
+ * everything larger. Recording never allocates; percentiles are the upper bound of the
+ * bucket they fall in, so they are within a factor of two.
+ */
+public final class Histogram {
+    public static final int BUCKETS = 40;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    Histogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param value Value, negative ones are taken as 0
+     */
+    public void record(long value) {
+        if (!Metrics.enabled) {
+            return;
+        }
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+    }
+
+    /**
+     * Record the microseconds passed since a start time
+     *
+     * @param startNanos Value of {@link Metrics#start()}, nothing is recorded for 0
+     */
+    public void recordSince(long startNanos) {
+        if (startNanos != 0) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    static int bucketOf(long value) {
+        return Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+    }
+
+    /**
+     * @return largest value counted in a bucket, Long.MAX_VALUE for the last one
+     */
+    static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(count.get(), sum.get(), counts);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+    }
+
+    /**
+     * Values of a histogram at one point in time
+     * <p/>
+     * Taken without locking, so under concurrent recording the count may be a little off
+     * from the sum of the buckets.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long[] buckets;
+
+        Snapshot(long count, long sum, long[] buckets) {
+            this.count = count;
+            this.sum = sum;
+            this.buckets = buckets;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(buckets.length - 1);
+        }
+
+        /**
+         * @return count of each bucket, see {@link Histogram}
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the library's counters and histograms
+ * <p/>
+ * Downloads, file copies and deletes, storage lookups and log calls report here. Metrics
+ * are off by default: then recording is one volatile read and timings don't even read the
+ * clock. Turn them on with {@link #setEnabled(boolean)} and read them with
+ * {@link #snapshot()}, e.g. to send {@link MetricsSnapshot#toJson()} with a bug report.
+ * <p/>
+ * Timings are recorded in microseconds.
+ * <p/>
+ * Plain Java, works on every API level and needs no permission.
+ */
+public final class Metrics {
+    static volatile boolean enabled;
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get or register a counter
+     *
+     * @param name Name of letters, digits, '.', '_' and '-', dot separated by component,
+     *             e.g. "download.bytes"
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            checkName(name);
+            Counter created = new Counter(name);
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Get or register a histogram
+     *
+     * @param name Name like for {@link #counter(String)}, e.g. "download.duration"
+     * @return the histogram
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            checkName(name);
+            Histogram created = new Histogram(name);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Names go into the JSON export unescaped
+     */
+    private static void checkName(String name) {
+        if (name.length() == 0) {
+            throw new IllegalArgumentException("Empty metric name");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                    || c == '.' || c == '_' || c == '-')) {
+                throw new IllegalArgumentException("Invalid metric name: " + name);
+            }
+        }
+    }
+
+    /**
+     * Start timing, see {@link Histogram#recordSince(long)}
+     *
+     * @return the current time, or 0 if metrics are off
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @return the current value of every metric
+     */
+    public static MetricsSnapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<String, Long>();
+        for (Counter counter : counters.values()) {
+            counterValues.put(counter.getName(), counter.get());
+        }
+        Map<String, Histogram.Snapshot> histogramValues = new TreeMap<String, Histogram.Snapshot>();
+        for (Histogram histogram : histograms.values()) {
+            histogramValues.put(histogram.getName(), histogram.snapshot());
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), counterValues, histogramValues);
+    }
+
+    /**
+     * Set every metric back to zero
+     */
+    public static void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
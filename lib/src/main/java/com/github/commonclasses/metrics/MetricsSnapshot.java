@@ -0,0 +1,128 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.metrics;
+
+import java.util.Map;
+
+/**
+ * Values of all metrics at one point in time, see {@link Metrics#snapshot()}
+ */
+public final class MetricsSnapshot {
+    private final long time;
+    private final Map<String, Long> counters;
+    private final Map<String, Histogram.Snapshot> histograms;
+
+    MetricsSnapshot(long time, Map<String, Long> counters, Map<String, Histogram.Snapshot> histograms) {
+        this.time = time;
+        this.counters = counters;
+        this.histograms = histograms;
+    }
+
+    /**
+     * @return wall clock time of the snapshot in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return counter values sorted by name
+     */
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    /**
+     * @return histograms sorted by name
+     */
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * @return value of a counter, 0 if it was never registered
+     */
+    public long getCounter(String name) {
+        Long value = counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * @return histogram, null if it was never registered
+     */
+    public Histogram.Snapshot getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    /**
+     * Export as JSON, e.g.
+     * {"time":1400000000000,"counters":{"download.bytes":1024},
+     * "histograms":{"download.ttfb":{"count":1,"sum":900,"mean":900,"p50":1023,"p90":1023,"p99":1023}}}
+     */
+    public String toJson() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"time\":").append(time).append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+        }
+        builder.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, Histogram.Snapshot> entry : histograms.entrySet()) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            Histogram.Snapshot histogram = entry.getValue();
+            builder.append('"').append(entry.getKey()).append("\":{")
+                    .append("\"count\":").append(histogram.getCount())
+                    .append(",\"sum\":").append(histogram.getSum())
+                    .append(",\"mean\":").append(histogram.getMean())
+                    .append(",\"p50\":").append(histogram.getPercentile(50))
+                    .append(",\"p90\":").append(histogram.getPercentile(90))
+                    .append(",\"p99\":").append(histogram.getPercentile(99))
+                    .append('}');
+        }
+        return builder.append("}}").toString();
+    }
+
+    /**
+     * One metric per line, for logging
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            builder.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram.Snapshot> entry : histograms.entrySet()) {
+            Histogram.Snapshot histogram = entry.getValue();
+            builder.append(entry.getKey()).append(" count=").append(histogram.getCount())
+                    .append(" mean=").append(histogram.getMean())
+                    .append(" p50=").append(histogram.getPercentile(50))
+                    .append(" p99=").append(histogram.getPercentile(99)).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stop signal of one running transfer, aborts its requests so blocked reads return at once.
+ */
+class Cancellation {
+    private volatile boolean cancelled;
+    private final List<HttpUriRequest> requests = new CopyOnWriteArrayList<HttpUriRequest>();
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void cancel() {
+        cancelled = true;
+        for (HttpUriRequest request : requests) {
+            request.abort();
+        }
+    }
+
+    void attach(HttpUriRequest request) {
+        requests.add(request);
+        if (cancelled) {
+            request.abort();
+        }
+    }
+
+    void detach(HttpUriRequest request) {
+        requests.remove(request);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Verify a checksum (CRC32, Adler32...) of the bytes passing through
+ */
+public class ChecksumStage implements StreamStage {
+    private final Checksum checksum;
+    private final long expected;
+
+    /**
+     * @param checksum Fresh checksum
+     * @param expected Expected value
+     */
+    public ChecksumStage(Checksum checksum, long expected) {
+        this.checksum = checksum;
+        this.expected = expected;
+    }
+
+    public static ChecksumStage crc32(long expected) {
+        return new ChecksumStage(new CRC32(), expected);
+    }
+
+    @Override
+    public InputStream wrap(InputStream in) {
+        return new CheckedInputStream(in, checksum);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (checksum.getValue() != expected) {
+            throw new IOException("Checksum mismatch, expected " + Long.toHexString(expected)
+                    + " but was " + Long.toHexString(checksum.getValue()));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompress the bytes passing through, for bodies which are compressed files rather than
+ * a Content-Encoding (that one is decoded by the client already).
+ * <p/>
+ * Other formats can be plugged in by implementing {@link StreamStage} the same way.
+ */
+public class DecompressStage implements StreamStage {
+    public static final int GZIP = 0;
+    public static final int DEFLATE = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int format;
+
+    /**
+     * @param format {@link #GZIP} or {@link #DEFLATE} (zlib wrapped)
+     */
+    public DecompressStage(int format) {
+        if (format != GZIP && format != DEFLATE) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        this.format = format;
+    }
+
+    @Override
+    public InputStream wrap(InputStream in) throws IOException {
+        if (format == GZIP) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE);
+    }
+
+    @Override
+    public void finish() {
+    }
+}
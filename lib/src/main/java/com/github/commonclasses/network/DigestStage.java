@@ -0,0 +1,73 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Verify a message digest (SHA-256, MD5...) of the bytes passing through
+ */
+public class DigestStage implements StreamStage {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest;
+    private final String expected;
+
+    /**
+     * @param algorithm   Digest algorithm, e.g. "SHA-256"
+     * @param expectedHex Expected digest in hex
+     * @throws NoSuchAlgorithmException
+     */
+    public DigestStage(String algorithm, String expectedHex) throws NoSuchAlgorithmException {
+        this.digest = MessageDigest.getInstance(algorithm);
+        this.expected = expectedHex.toLowerCase();
+    }
+
+    public static DigestStage sha256(String expectedHex) {
+        try {
+            return new DigestStage("SHA-256", expectedHex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public InputStream wrap(InputStream in) {
+        return new DigestInputStream(in, digest);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        byte[] bytes = digest.digest();
+        char[] actual = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            actual[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            actual[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        if (!expected.equals(new String(actual))) {
+            throw new IOException(digest.getAlgorithm() + " mismatch, expected " + expected
+                    + " but was " + new String(actual));
+        }
+    }
+}
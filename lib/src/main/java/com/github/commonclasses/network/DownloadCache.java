@@ -0,0 +1,386 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import android.content.Context;
+import com.github.commonclasses.metrics.Counter;
+import com.github.commonclasses.metrics.Metrics;
+import com.github.commonclasses.storage.FileOperations;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP aware disk cache for {@link DownloadClient}
+ * <p/>
+ * Keeps a copy of every downloaded file together with its validators (ETag, Last-Modified)
+ * and Cache-Control max-age. A fresh copy is served without any request, a stale one is
+ * revalidated with a conditional request and served again on 304 Not Modified. The total
+ * size stays under a byte budget by evicting the least recently used files.
+ * <p/>
+ * The index is a small binary file in the cache directory, rewritten atomically whenever
+ * an entry is added or removed, so opening a cache doesn't scan the directory.
+ * <p/>
+ * Enable it with {@link DownloadClient#setCache(DownloadCache)}, it's only used by single
+ * stream downloads which are not resumed.
+ */
+public class DownloadCache {
+    private static final String INDEX = "index";
+    private static final int INDEX_MAGIC = 0x44434931;
+    private static final Counter INDEX_ERRORS = Metrics.counter("download.cache.index.errors");
+
+    private final File directory;
+    private final long maxSize;
+    // access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size;
+
+    static class Entry {
+        final String urlStr;
+        final String fileName;
+        String etag;
+        String lastModified;
+        long expires;
+        long size;
+
+        Entry(String urlStr, String fileName) {
+            this.urlStr = urlStr;
+            this.fileName = fileName;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+    }
+
+    /**
+     * Cache in a directory chosen by {@link FileOperations#getFile(Context, String)}
+     *
+     * @param context Context
+     * @param dirName Name of the cache directory
+     * @param maxSize Byte budget
+     */
+    public DownloadCache(Context context, String dirName, long maxSize) {
+        this(FileOperations.getFile(context, dirName), maxSize);
+    }
+
+    /**
+     * @param directory Cache directory, will be created if it doesn't exist
+     * @param maxSize   Byte budget
+     */
+    public DownloadCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        loadIndex();
+        if (size > maxSize) {
+            trimToSize();
+            saveIndex();
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Drop the cached copy of a url
+     */
+    public synchronized void remove(String urlStr) {
+        Entry entry = entries.remove(urlStr);
+        if (entry != null) {
+            delete(entry);
+            saveIndex();
+        }
+    }
+
+    /**
+     * Drop all cached files
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            delete(entry);
+        }
+        entries.clear();
+        saveIndex();
+    }
+
+    /**
+     * @return the entry of a url, null if it's not cached
+     */
+    synchronized Entry get(String urlStr) {
+        Entry entry = entries.get(urlStr);
+        if (entry != null && new File(directory, entry.fileName).length() != entry.size) {
+            // removed or damaged behind our back
+            remove(urlStr);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cached file of a url, fresh or not, for callers which accept a stale copy, like images
+     * whose urls never change. Read it right away, it may be evicted at any time.
+     *
+     * @return the file, null if the url is not cached
+     */
+    public File getFile(String urlStr) {
+        Entry entry = get(urlStr);
+        return entry != null ? new File(directory, entry.fileName) : null;
+    }
+
+    /**
+     * Copy the cached file of an entry to dest
+     *
+     * @return size of the file
+     */
+    long copyTo(Entry entry, File dest) throws IOException {
+        return copy(new File(directory, entry.fileName), dest);
+    }
+
+    /**
+     * Store a downloaded file if its response allows it
+     */
+    void put(String urlStr, File source, HttpResponse response) throws IOException {
+        String cacheControl = headerValue(response, "Cache-Control");
+        String etag = headerValue(response, "ETag");
+        String lastModified = headerValue(response, "Last-Modified");
+        long maxAge = maxAge(cacheControl);
+        if ((cacheControl != null && cacheControl.contains("no-store"))
+                || (etag == null && lastModified == null && maxAge <= 0)
+                || source.length() > maxSize) {
+            remove(urlStr);
+            return;
+        }
+
+        Entry entry = new Entry(urlStr, fileName(urlStr));
+        entry.etag = etag;
+        entry.lastModified = lastModified;
+        entry.expires = System.currentTimeMillis() + maxAge * 1000;
+        // unique, two puts of the same url may run at the same time
+        File temp = File.createTempFile(entry.fileName + "-", ".tmp", directory);
+        try {
+            entry.size = copy(source, temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            Entry previous = entries.remove(urlStr);
+            if (previous != null) {
+                size -= previous.size;
+            }
+            if (!temp.renameTo(new File(directory, entry.fileName))) {
+                temp.delete();
+                saveIndex();
+                throw new IOException("Can't store " + urlStr + " in cache");
+            }
+            entries.put(urlStr, entry);
+            size += entry.size;
+            trimToSize();
+            saveIndex();
+        }
+    }
+
+    /**
+     * The server answered 304 for an entry, refresh its freshness
+     */
+    synchronized void revalidated(Entry entry, HttpResponse response) {
+        String cacheControl = headerValue(response, "Cache-Control");
+        String etag = headerValue(response, "ETag");
+        if (etag != null) {
+            entry.etag = etag;
+        }
+        entry.expires = System.currentTimeMillis() + maxAge(cacheControl) * 1000;
+        saveIndex();
+    }
+
+    private void trimToSize() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            delete(eldest);
+        }
+    }
+
+    private void delete(Entry entry) {
+        size -= entry.size;
+        new File(directory, entry.fileName).delete();
+    }
+
+    private void loadIndex() {
+        File index = new File(directory, INDEX);
+        if (!index.isFile()) {
+            return;
+        }
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+            if (is.readInt() != INDEX_MAGIC) {
+                return;
+            }
+            int count = is.readInt();
+            List<Entry> loaded = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(is.readUTF(), is.readUTF());
+                entry.etag = emptyToNull(is.readUTF());
+                entry.lastModified = emptyToNull(is.readUTF());
+                entry.expires = is.readLong();
+                entry.size = is.readLong();
+                loaded.add(entry);
+            }
+            // written from least to most recently used, so the order survives
+            for (Entry entry : loaded) {
+                entries.put(entry.urlStr, entry);
+                size += entry.size;
+            }
+        } catch (IOException e) {
+            entries.clear();
+            size = 0;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void saveIndex() {
+        File temp = new File(directory, INDEX + ".tmp");
+        DataOutputStream os = null;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            os.writeInt(INDEX_MAGIC);
+            os.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                os.writeUTF(entry.urlStr);
+                os.writeUTF(entry.fileName);
+                os.writeUTF(entry.etag == null ? "" : entry.etag);
+                os.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+                os.writeLong(entry.expires);
+                os.writeLong(entry.size);
+            }
+            os.close();
+            os = null;
+            temp.renameTo(new File(directory, INDEX));
+        } catch (IOException e) {
+            // the cache still works, it's just forgotten on the next start
+            INDEX_ERRORS.increment();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static long copy(File src, File tgt) throws IOException {
+        FileInputStream input = new FileInputStream(src);
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(tgt);
+            FileChannel in = input.getChannel();
+            FileChannel out = output.getChannel();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            return size;
+        } finally {
+            input.close();
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * @return max-age in seconds, 0 if absent or no-cache
+     */
+    private static long maxAge(String cacheControl) {
+        if (cacheControl == null || cacheControl.contains("no-cache")) {
+            return 0;
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.startsWith("max-age=")) {
+                try {
+                    return Math.max(0, Long.parseLong(directive.substring(8).trim()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static String fileName(String urlStr) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(urlStr.getBytes("UTF-8"));
+            return String.format("%032x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static String emptyToNull(String value) {
+        return value.length() == 0 ? null : value;
+    }
+}
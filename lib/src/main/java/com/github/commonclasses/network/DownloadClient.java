@@ -0,0 +1,1027 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import com.github.commonclasses.metrics.Counter;
+import com.github.commonclasses.metrics.Histogram;
+import com.github.commonclasses.metrics.Metrics;
+import com.github.commonclasses.network.DownloadUtils.DownloadListener;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Reusable download client
+ * <p/>
+ * All downloads of one client share a thread safe connection pool, so connections to the
+ * same host are kept alive and reused instead of paying a new TCP (and TLS) handshake for
+ * every file. Create one client and keep it, or use {@link #getDefault()}, which is what
+ * {@link DownloadUtils} does.
+ * <p/>
+ * Concurrent downloads of the same url to the same dest share one transfer, the callers
+ * which come later attach to it and get its callbacks on their own listeners.
+ * <p/>
+ * Counts, bytes and timings of all downloads are reported as "download.*" to
+ * {@link Metrics} when it's enabled.
+ * <p/>
+ * Permission Needed
+ * <p/>
+ * <uses-permission android:name="android.permission.INTERNET" />
+ */
+public class DownloadClient {
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_DATA_TIMEOUT = 40000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_SEGMENTS = 8;
+    private static final long MIN_SEGMENT_SIZE = 256 * 1024;
+    // journal checkpoints need both, so fast links don't sync the file too often
+    private static final long CHECKPOINT_SIZE = 2 * 1024 * 1024;
+    private static final long CHECKPOINT_INTERVAL = 1000000000L;
+    // segment tasks stop at once when their requests are aborted, this is only a bound
+    private static final long STOP_TIMEOUT = 5000;
+
+    private static final Counter STARTED = Metrics.counter("download.started");
+    private static final Counter COMPLETED = Metrics.counter("download.completed");
+    private static final Counter FAILED = Metrics.counter("download.failed");
+    private static final Counter CANCELLED = Metrics.counter("download.cancelled");
+    private static final Counter COALESCED = Metrics.counter("download.coalesced");
+    private static final Counter RESUMED = Metrics.counter("download.resumed");
+    private static final Counter BYTES = Metrics.counter("download.bytes");
+    private static final Counter CACHE_HITS = Metrics.counter("download.cache.hits");
+    private static final Counter CACHE_REVALIDATED = Metrics.counter("download.cache.revalidated");
+    private static final Counter CACHE_ERRORS = Metrics.counter("download.cache.errors");
+    // time to the response headers, microseconds
+    private static final Histogram TTFB = Metrics.histogram("download.ttfb");
+    private static final Histogram DURATION = Metrics.histogram("download.duration");
+
+    private static DownloadClient defaultClient;
+
+    private final DefaultHttpClient httpClient;
+    private final int maxConnectionsPerHost;
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+    private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+    private volatile long progressInterval;
+    private volatile DownloadCache cache;
+    private final ConcurrentHashMap<String, InFlight> inFlight = new ConcurrentHashMap<String, InFlight>();
+
+    public DownloadClient() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_DATA_TIMEOUT, DEFAULT_MAX_CONNECTIONS,
+                DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * @param connectTimeout        Connect timeout in milliseconds
+     * @param dataTimeout           Socket read timeout in milliseconds
+     * @param maxConnections        Pooled connections in total
+     * @param maxConnectionsPerHost Pooled connections to a single host
+     */
+    public DownloadClient(int connectTimeout, int dataTimeout, int maxConnections, int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, dataTimeout);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerHost));
+        // how long to wait for a free pooled connection
+        ConnManagerParams.setTimeout(params, dataTimeout);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, registry);
+        httpClient = new DefaultHttpClient(connectionManager, params);
+    }
+
+    /**
+     * Get the shared client with default timeouts and pool sizes
+     *
+     * @return the default client
+     */
+    public static synchronized DownloadClient getDefault() {
+        if (defaultClient == null) {
+            defaultClient = new DownloadClient();
+        }
+        return defaultClient;
+    }
+
+    /**
+     * Set the size of the read buffer, each transfer thread keeps and reuses one. Bigger
+     * buffers mean fewer reads and writes on fast links.
+     *
+     * @param bufferSize size in bytes, {@link #DEFAULT_BUFFER_SIZE} by default
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Progress is reported only when the percentage changes, and at most once per interval.
+     *
+     * @param millis minimum time between two progress callbacks, 0 by default
+     */
+    public void setProgressInterval(long millis) {
+        this.progressInterval = millis;
+    }
+
+    /**
+     * Keep downloaded files in a disk cache, which serves them again while they are fresh
+     * and revalidates them with conditional requests afterwards.
+     *
+     * @param cache the cache, null to disable caching
+     */
+    public void setCache(DownloadCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Close all pooled connections, the client can't be used any more.
+     */
+    public void shutdown() {
+        httpClient.getConnectionManager().shutdown();
+    }
+
+    /**
+     * Download a file with a single stream
+     * <p/>
+     * While downloading, a "dest.journal" checkpoint file is kept next to dest. With append,
+     * the download continues from the last byte the journal recorded on disk, provided the
+     * server answers the If-Range request with 206. Otherwise, if dest has no journal (its
+     * tail can't be trusted after a crash), or if the server sent neither a strong ETag nor a
+     * Last-Modified to validate it with, it starts over from the beginning.
+     * <p/>
+     * Without append, a file cached by the {@link DownloadCache} of this client is copied to
+     * dest instead, after a conditional request if it's not fresh any more.
+     *
+     * @param urlStr           Remote url
+     * @param dest             Destination file
+     * @param append           true to resume from an existing partial file
+     * @param downloadListener Listener, may be null
+     * @return size downloaded by this call
+     * @throws Exception
+     */
+    public long download(String urlStr, File dest, boolean append, DownloadListener downloadListener) throws Exception {
+        return coalesce(urlStr, dest, append, 0, downloadListener);
+    }
+
+    /**
+     * Download a file with a single stream, passing the body through the given stages in the
+     * same pass that writes it, e.g. <code>download(url, dest, listener,
+     * DigestStage.sha256(hash))</code>.
+     * <p/>
+     * The download fails and dest is deleted as soon as a stage fails. A staged download
+     * always starts from the beginning and bypasses the {@link DownloadCache}.
+     *
+     * @param urlStr           Remote url
+     * @param dest             Destination file, will be overwritten
+     * @param downloadListener Listener, may be null
+     * @param stages           Stages in the order they apply to the body
+     * @return downloaded size
+     * @throws Exception
+     */
+    public long download(String urlStr, File dest, DownloadListener downloadListener, StreamStage... stages)
+            throws Exception {
+        return download(urlStr, dest, false, downloadListener, stages, null);
+    }
+
+    /**
+     * Single stream download which stops with an {@link InterruptedIOException}, without
+     * telling the listener, once the cancellation is signalled.
+     */
+    long download(String urlStr, File dest, boolean append, DownloadListener downloadListener,
+                  StreamStage[] stages, Cancellation cancellation) throws Exception {
+        long start = Metrics.start();
+        STARTED.increment();
+        try {
+            long size = transfer(urlStr, dest, append, downloadListener, stages, cancellation);
+            COMPLETED.increment();
+            DURATION.recordSince(start);
+            return size;
+        } catch (Exception e) {
+            countFailure(cancellation);
+            throw e;
+        }
+    }
+
+    /**
+     * Count a download which threw, as cancelled if its cancellation was signalled or its
+     * thread was interrupted
+     */
+    private static void countFailure(Cancellation cancellation) {
+        if ((cancellation != null && cancellation.isCancelled()) || Thread.currentThread().isInterrupted()) {
+            CANCELLED.increment();
+        } else {
+            FAILED.increment();
+        }
+    }
+
+    private long transfer(String urlStr, File dest, boolean append, DownloadListener downloadListener,
+                          StreamStage[] stages, Cancellation cancellation) throws Exception {
+        long offset = 0;
+        long totalSize = -1;
+        boolean staged = stages != null && stages.length > 0;
+        if (staged) {
+            append = false;
+        }
+
+        DownloadJournal journal = append && dest.isFile() ? DownloadJournal.load(dest, urlStr) : null;
+        if (journal != null && journal.getValidator() == null) {
+            // without a validator for If-Range, a changed file would be resumed into a mix
+            journal = null;
+        }
+        if (journal != null) {
+            offset = Math.min(journal.getCompletedPrefix(), dest.length());
+        } else {
+            // without a journal a partial file can't be validated, its tail may be torn
+            if (dest.exists() && dest.isFile()) {
+                dest.delete();
+            }
+            DownloadJournal.delete(dest);
+        }
+
+        DownloadCache cache = staged ? null : this.cache;
+        DownloadCache.Entry cached = cache != null && !append ? cache.get(urlStr) : null;
+        if (cached != null && cached.isFresh()) {
+            try {
+                totalSize = cache.copyTo(cached, dest);
+                CACHE_HITS.increment();
+                if (downloadListener != null) {
+                    downloadListener.downloading(100);
+                    downloadListener.downloaded(dest);
+                }
+                return totalSize;
+            } catch (IOException e) {
+                cache.remove(urlStr);
+                cached = null;
+            }
+        }
+
+        HttpGet request = new HttpGet(urlStr);
+        request.setHeader("Content-Type", "application/x-www-form-urlencoded");
+
+        if (cached != null) {
+            if (cached.etag != null) {
+                request.addHeader("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                request.addHeader("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        if (offset > 0) {
+            RESUMED.increment();
+            request.addHeader("Range", "bytes=" + offset + "-");
+            request.addHeader("Accept-Encoding", "identity");
+            request.addHeader("If-Range", journal.getValidator());
+        }
+
+        if (cancellation != null) {
+            cancellation.attach(request);
+        }
+
+        InputStream is = null;
+        RandomAccessFile file = null;
+        long position = offset;
+        HttpResponse cacheableResponse = null;
+        Exception failure = null;
+        try {
+            long requested = Metrics.start();
+            HttpResponse response = httpClient.execute(request);
+            TTFB.recordSince(requested);
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_PARTIAL_CONTENT && contentRangeStart(response) != offset) {
+                entity.consumeContent();
+                throw new IOException("Unexpected Content-Range for offset " + offset + ": "
+                        + response.getFirstHeader("Content-Range"));
+            }
+            if (status == HttpStatus.SC_OK || (status == HttpStatus.SC_PARTIAL_CONTENT && offset > 0)) {
+                if (status == HttpStatus.SC_OK) {
+                    // the whole file is coming, range ignored or validator changed
+                    offset = 0;
+                }
+                CountingInputStream body = new CountingInputStream(entity.getContent());
+                is = body;
+                long remoteSize = entity.getContentLength();
+                long fullSize = remoteSize < 0 ? -1 : offset + remoteSize;
+                Header contentEncoding = response.getFirstHeader("Content-Encoding");
+                boolean gzip = contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase("gzip");
+                if (gzip) {
+                    is = new GZIPInputStream(is, bufferSize);
+                }
+                if (staged) {
+                    for (StreamStage stage : stages) {
+                        is = stage.wrap(is);
+                    }
+                }
+                if (gzip || staged) {
+                    // file offsets may not match remote ranges, not resumable
+                    journal = null;
+                    DownloadJournal.delete(dest);
+                } else if (status == HttpStatus.SC_OK || journal == null) {
+                    journal = new DownloadJournal(dest, urlStr, headerValue(response, "ETag"),
+                            headerValue(response, "Last-Modified"), fullSize);
+                }
+
+                file = new RandomAccessFile(dest, "rw");
+                file.setLength(offset);
+                FileChannel channel = file.getChannel();
+                position = offset;
+                long checkpoint = offset + CHECKPOINT_SIZE;
+                long checkpointTime = System.nanoTime() + CHECKPOINT_INTERVAL;
+                Progress progress = new Progress(fullSize, offset, downloadListener);
+                byte buffer[] = buffer();
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                int readSize;
+                while ((readSize = is.read(buffer)) > 0) {
+                    wrapped.clear();
+                    wrapped.limit(readSize);
+                    while (wrapped.hasRemaining()) {
+                        position += channel.write(wrapped, position);
+                    }
+                    if (cancellation != null && cancellation.isCancelled()) {
+                        throw new InterruptedIOException("Download cancelled: " + urlStr);
+                    }
+                    if (journal != null && position >= checkpoint && System.nanoTime() - checkpointTime >= 0) {
+                        checkpoint(channel, journal, offset, position);
+                        checkpoint = position + CHECKPOINT_SIZE;
+                        checkpointTime = System.nanoTime() + CHECKPOINT_INTERVAL;
+                    }
+                    progress.set(offset + body.count);
+                }
+                if (fullSize >= 0 && offset + body.count != fullSize) {
+                    throw new IOException("Connection closed at " + (offset + body.count) + " of " + fullSize);
+                }
+                if (staged) {
+                    for (StreamStage stage : stages) {
+                        stage.finish();
+                    }
+                }
+                totalSize = position - offset;
+                if (cache != null && !append) {
+                    cacheableResponse = response;
+                }
+            } else if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                cache.revalidated(cached, response);
+                totalSize = cache.copyTo(cached, dest);
+                CACHE_REVALIDATED.increment();
+                if (downloadListener != null) {
+                    downloadListener.downloading(100);
+                }
+            } else if (entity != null) {
+                // give the connection back to the pool
+                entity.consumeContent();
+            }
+        } catch (Exception e) {
+            if (cancellation != null && cancellation.isCancelled()) {
+                request.abort();
+                throw new InterruptedIOException("Download cancelled: " + urlStr);
+            }
+            if (downloadListener != null) {
+                downloadListener.exception(e);
+            }
+            failure = e;
+        } finally {
+            if (file != null) {
+                if (journal != null && totalSize < 0 && position > offset) {
+                    try {
+                        checkpoint(file.getChannel(), journal, offset, position);
+                    } catch (IOException e) {
+                        // keep the previous checkpoint
+                    }
+                }
+                file.close();
+            }
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // the request was aborted
+                }
+            }
+        }
+
+        if (totalSize < 0) {
+            if (staged) {
+                dest.delete();
+            }
+            throw new Exception("Download file fail: " + urlStr, failure);
+        }
+
+        if (journal != null) {
+            journal.delete();
+        }
+
+        if (cacheableResponse != null) {
+            try {
+                cache.put(urlStr, dest, cacheableResponse);
+            } catch (IOException e) {
+                // the download itself is fine, it just won't be cached
+                CACHE_ERRORS.increment();
+            }
+        }
+
+        if (downloadListener != null) {
+            downloadListener.downloaded(dest);
+        }
+
+        return totalSize;
+    }
+
+    /**
+     * Download a file with several byte ranges fetched at the same time, each one written
+     * at its own offset of the (preallocated) destination file.
+     * <p/>
+     * Falls back to the single stream {@link #download(String, File, boolean, DownloadListener)}
+     * when the server doesn't report a length or doesn't accept byte ranges, or the file is
+     * too small to be worth splitting. Progress may be reported from worker threads.
+     * <p/>
+     * The ranges on disk are checkpointed in a "dest.journal" file, if a previous attempt
+     * for the same url and the same remote file (told by a strong ETag or Last-Modified) left
+     * one, only the missing ranges are fetched.
+     *
+     * @param urlStr           Remote url
+     * @param dest             Destination file, will be overwritten
+     * @param segments         How many ranges to fetch in parallel, at most 8 and at most
+     *                         the per host connection limit of this client
+     * @param downloadListener Listener, may be null
+     * @return size downloaded by this call
+     * @throws Exception
+     */
+    public long download(String urlStr, File dest, int segments, DownloadListener downloadListener) throws Exception {
+        return coalesce(urlStr, dest, false, Math.max(segments, 1), downloadListener);
+    }
+
+    /**
+     * Run the download, or attach to the one already running for the same url and dest
+     *
+     * @param segments 0 for a single stream download
+     */
+    private long coalesce(String urlStr, File dest, boolean append, int segments, DownloadListener downloadListener)
+            throws Exception {
+        String key = urlStr + '\n' + dest.getAbsolutePath();
+        InFlight flight = new InFlight(downloadListener);
+        while (true) {
+            InFlight current = inFlight.putIfAbsent(key, flight);
+            if (current == null) {
+                break;
+            }
+            if (current.attach(downloadListener)) {
+                COALESCED.increment();
+                return current.await(urlStr);
+            }
+            // finished, wait until its owner has removed it, then start a new one; only
+            // the owner removes its entry
+            current.awaitDone();
+        }
+
+        long start = Metrics.start();
+        STARTED.increment();
+        long size = -1;
+        Exception failure = null;
+        try {
+            size = segments > 0
+                    ? downloadSegments(urlStr, dest, segments, flight)
+                    : transfer(urlStr, dest, append, flight, null, null);
+            COMPLETED.increment();
+            DURATION.recordSince(start);
+            return size;
+        } catch (Exception e) {
+            countFailure(null);
+            failure = e;
+            throw e;
+        } finally {
+            // removed first, so the callers woken by finish() don't find it again
+            inFlight.remove(key, flight);
+            flight.finish(size, failure);
+        }
+    }
+
+    private long downloadSegments(String urlStr, File dest, int segments, DownloadListener downloadListener)
+            throws Exception {
+        segments = Math.min(segments, Math.min(MAX_SEGMENTS, maxConnectionsPerHost));
+        RemoteFile remote = probe(urlStr);
+        if (segments <= 1 || remote == null || remote.length < segments * MIN_SEGMENT_SIZE) {
+            return transfer(urlStr, dest, false, downloadListener, null, null);
+        }
+
+        DownloadJournal journal = DownloadJournal.load(dest, urlStr);
+        if (journal == null || journal.getLength() != remote.length || dest.length() != remote.length
+                || !journal.matches(remote.etag, remote.lastModified) || journal.getValidator() == null) {
+            journal = new DownloadJournal(dest, urlStr, remote.etag, remote.lastModified, remote.length);
+        }
+        List<long[]> parts = split(journal.getMissingRanges(), segments);
+        long missingSize = remote.length - journal.getCompletedSize();
+        if (missingSize < remote.length) {
+            RESUMED.increment();
+        }
+
+        long totalSize = 0;
+        Throwable failure = null;
+        // stops the tasks by aborting their requests, an interrupt would close the shared channel
+        Cancellation cancellation = new Cancellation();
+        RandomAccessFile file = new RandomAccessFile(dest, "rw");
+        ExecutorService executor = Executors.newFixedThreadPool(segments);
+        FileChannel channel = file.getChannel();
+        try {
+            file.setLength(remote.length);
+            journal.save();
+            Progress progress = new Progress(remote.length, remote.length - missingSize, downloadListener);
+            List<Future<Long>> futures = new ArrayList<Future<Long>>(parts.size());
+            String validator = journal.getValidator();
+            for (long[] part : parts) {
+                futures.add(executor.submit(new SegmentTask(urlStr, validator, channel, part[0], part[1],
+                        progress, journal, cancellation)));
+            }
+            for (Future<Long> future : futures) {
+                totalSize += future.get();
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                // keep it for the caller
+                Thread.currentThread().interrupt();
+            }
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (downloadListener != null) {
+                downloadListener.exception(cause instanceof Exception ? (Exception) cause : e);
+            }
+            failure = cause;
+            totalSize = -1;
+        } finally {
+            cancellation.cancel();
+            executor.shutdown();
+            try {
+                // the tasks record their ranges in the journal when they end
+                executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (totalSize != missingSize) {
+                try {
+                    channel.force(false);
+                    journal.save();
+                } catch (IOException e) {
+                    // keep the previous checkpoint, the download failure is what's reported
+                }
+            }
+            file.close();
+        }
+
+        if (totalSize != missingSize) {
+            throw new Exception("Download file fail: " + urlStr, failure);
+        }
+
+        journal.delete();
+
+        if (downloadListener != null) {
+            downloadListener.downloaded(dest);
+        }
+
+        return totalSize;
+    }
+
+    /**
+     * Split the missing ranges into about the given number of parts
+     */
+    private static List<long[]> split(List<long[]> missing, int segments) {
+        long missingSize = 0;
+        for (long[] range : missing) {
+            missingSize += range[1] - range[0];
+        }
+        long partSize = Math.max(MIN_SEGMENT_SIZE, (missingSize + segments - 1) / segments);
+        List<long[]> parts = new ArrayList<long[]>();
+        for (long[] range : missing) {
+            for (long start = range[0]; start < range[1]; start += partSize) {
+                parts.add(new long[]{start, Math.min(range[1], start + partSize)});
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Make the bytes written so far durable, then record the [start, position) range in the journal
+     */
+    private static void checkpoint(FileChannel channel, DownloadJournal journal, long start, long position)
+            throws IOException {
+        channel.force(false);
+        journal.addRange(start, position);
+        journal.save();
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * @return first byte position of a "Content-Range: bytes start-end/total" header, -1 if absent
+     */
+    private static long contentRangeStart(HttpResponse response) {
+        String value = headerValue(response, "Content-Range");
+        if (value == null) {
+            return -1;
+        }
+        int space = value.indexOf(' ');
+        int dash = value.indexOf('-');
+        try {
+            return Long.parseLong(value.substring(space + 1, dash).trim());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static class RemoteFile {
+        long length;
+        String etag;
+        String lastModified;
+    }
+
+    /**
+     * @return length and validators if the server accepts byte ranges, null otherwise
+     */
+    private RemoteFile probe(String urlStr) {
+        HttpHead request = new HttpHead(urlStr);
+        request.setHeader("Accept-Encoding", "identity");
+        try {
+            HttpResponse response = httpClient.execute(request);
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                return null;
+            }
+            String acceptRanges = headerValue(response, "Accept-Ranges");
+            String contentLength = headerValue(response, "Content-Length");
+            if (acceptRanges == null || !acceptRanges.equalsIgnoreCase("bytes") || contentLength == null) {
+                return null;
+            }
+            RemoteFile remote = new RemoteFile();
+            remote.length = Long.parseLong(contentLength.trim());
+            remote.etag = headerValue(response, "ETag");
+            remote.lastModified = headerValue(response, "Last-Modified");
+            return remote;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the reusable read buffer of the current thread
+     */
+    private byte[] buffer() {
+        byte[] buffer = buffers.get();
+        if (buffer == null || buffer.length != bufferSize) {
+            buffer = new byte[bufferSize];
+            buffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Progress of one download, may be shared by several transfer threads
+     */
+    private class Progress {
+        private final long remoteSize;
+        private final DownloadListener downloadListener;
+        private final long interval;
+        private final AtomicLong received;
+        private final AtomicInteger lastProgress = new AtomicInteger(-1);
+        private volatile long lastTime;
+
+        Progress(long remoteSize, long completed, DownloadListener downloadListener) {
+            this.remoteSize = remoteSize;
+            this.received = new AtomicLong(completed);
+            this.downloadListener = downloadListener;
+            this.interval = progressInterval * 1000000L;
+            this.lastTime = System.nanoTime() - interval;
+        }
+
+        void add(int size) {
+            if (downloadListener != null) {
+                report(received.addAndGet(size));
+            }
+        }
+
+        void set(long size) {
+            if (downloadListener != null) {
+                received.set(size);
+                report(size);
+            }
+        }
+
+        private void report(long size) {
+            if (remoteSize <= 0) {
+                return;
+            }
+            int progress = (int) (size * 100 / remoteSize);
+            int last = lastProgress.get();
+            if (progress <= last) {
+                return;
+            }
+            long now = 0;
+            if (interval > 0 && progress < 100) {
+                now = System.nanoTime();
+                if (now - lastTime < interval) {
+                    return;
+                }
+            }
+            // only the thread which moves the percentage forward reports it
+            if (lastProgress.compareAndSet(last, progress)) {
+                lastTime = now;
+                downloadListener.downloading(progress);
+            }
+        }
+    }
+
+    /**
+     * A running download shared by every caller asking for the same url and dest, each of
+     * them gets the callbacks on its own listener.
+     */
+    private static class InFlight implements DownloadListener {
+        private final List<DownloadListener> listeners = new CopyOnWriteArrayList<DownloadListener>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int lastProgress = -1;
+        private boolean closed;
+        private long size;
+        private Exception exception;
+        // the last callback, replayed to listeners attached after it
+        private File downloaded;
+        private Exception reported;
+
+        InFlight(DownloadListener downloadListener) {
+            if (downloadListener != null) {
+                listeners.add(downloadListener);
+            }
+        }
+
+        /**
+         * @return false if the owner has already finished
+         */
+        synchronized boolean attach(DownloadListener downloadListener) {
+            if (closed) {
+                return false;
+            }
+            if (downloadListener != null) {
+                if (downloaded != null) {
+                    downloadListener.downloading(100);
+                    downloadListener.downloaded(downloaded);
+                } else if (reported != null) {
+                    downloadListener.exception(reported);
+                } else {
+                    listeners.add(downloadListener);
+                    if (lastProgress >= 0) {
+                        downloadListener.downloading(lastProgress);
+                    }
+                }
+            }
+            return true;
+        }
+
+        long await(String urlStr) throws Exception {
+            done.await();
+            if (exception != null || size < 0) {
+                throw new Exception("Download file fail: " + urlStr, exception);
+            }
+            return size;
+        }
+
+        /**
+         * Wait until the owner has finished the transfer and cleaned up after it
+         */
+        void awaitDone() throws InterruptedException {
+            done.await();
+        }
+
+        void finish(long size, Exception exception) {
+            synchronized (this) {
+                closed = true;
+                this.size = size;
+                this.exception = exception;
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void downloading(int progress) {
+            lastProgress = progress;
+            for (DownloadListener downloadListener : listeners) {
+                downloadListener.downloading(progress);
+            }
+        }
+
+        @Override
+        public void downloaded(File dest) {
+            synchronized (this) {
+                downloaded = dest;
+            }
+            for (DownloadListener downloadListener : listeners) {
+                downloadListener.downloaded(dest);
+            }
+        }
+
+        @Override
+        public void exception(Exception e) {
+            synchronized (this) {
+                reported = e;
+            }
+            for (DownloadListener downloadListener : listeners) {
+                downloadListener.exception(e);
+            }
+        }
+    }
+
+    /**
+     * Counts the raw body bytes, before any decoding
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+                BYTES.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int readSize = super.read(buffer, offset, length);
+            if (readSize > 0) {
+                count += readSize;
+                BYTES.add(readSize);
+            }
+            return readSize;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            BYTES.add(skipped);
+            return skipped;
+        }
+    }
+
+    private class SegmentTask implements Callable<Long> {
+        private final String urlStr;
+        private final String validator;
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final Progress progress;
+        private final DownloadJournal journal;
+        private final Cancellation cancellation;
+
+        /**
+         * Fetch the [start, end) range
+         */
+        SegmentTask(String urlStr, String validator, FileChannel channel, long start, long end,
+                    Progress progress, DownloadJournal journal, Cancellation cancellation) {
+            this.urlStr = urlStr;
+            this.validator = validator;
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.progress = progress;
+            this.journal = journal;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            HttpGet request = new HttpGet(urlStr);
+            request.addHeader("Range", "bytes=" + start + "-" + (end - 1));
+            request.addHeader("Accept-Encoding", "identity");
+            if (validator != null) {
+                request.addHeader("If-Range", validator);
+            }
+            cancellation.attach(request);
+            InputStream is = null;
+            long position = start;
+            try {
+                long requested = Metrics.start();
+                HttpResponse response = httpClient.execute(request);
+                TTFB.recordSince(requested);
+                HttpEntity entity = response.getEntity();
+                if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT
+                        || contentRangeStart(response) != start || entity == null) {
+                    if (entity != null) {
+                        entity.consumeContent();
+                    }
+                    throw new IOException("Range " + start + "-" + end + " not served: "
+                            + response.getStatusLine());
+                }
+                is = entity.getContent();
+                byte buffer[] = buffer();
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                long checkpoint = start + CHECKPOINT_SIZE;
+                long checkpointTime = System.nanoTime() + CHECKPOINT_INTERVAL;
+                int readSize;
+                while ((readSize = is.read(buffer)) > 0) {
+                    if (position + readSize > end) {
+                        throw new IOException("Range " + start + "-" + end + " overflow");
+                    }
+                    wrapped.clear();
+                    wrapped.limit(readSize);
+                    while (wrapped.hasRemaining()) {
+                        position += channel.write(wrapped, position);
+                    }
+                    progress.add(readSize);
+                    BYTES.add(readSize);
+                    if (position >= checkpoint && System.nanoTime() - checkpointTime >= 0) {
+                        checkpoint(channel, journal, start, position);
+                        checkpoint = position + CHECKPOINT_SIZE;
+                        checkpointTime = System.nanoTime() + CHECKPOINT_INTERVAL;
+                    }
+                    if (cancellation.isCancelled()) {
+                        throw new InterruptedIOException("Range " + start + "-" + end + " cancelled");
+                    }
+                }
+                if (position != end) {
+                    throw new IOException("Range " + start + "-" + end + " truncated at " + position);
+                }
+                return end - start;
+            } finally {
+                journal.addRange(start, position);
+                cancellation.detach(request);
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        // the request was aborted
+                    }
+                }
+            }
+        }
+    }
+}
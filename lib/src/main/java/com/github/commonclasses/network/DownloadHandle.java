@@ -0,0 +1,162 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import com.github.commonclasses.network.DownloadUtils.DownloadListener;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle of a download enqueued in a {@link DownloadScheduler}
+ * <p/>
+ * {@link #get()} blocks until the download completed, failed or was cancelled, and returns
+ * the downloaded size. A paused download is not done, it keeps waiting for {@link #resume()}.
+ */
+public class DownloadHandle implements Future<Long> {
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_COMPLETED = 3;
+    public static final int STATE_FAILED = 4;
+    public static final int STATE_CANCELLED = 5;
+
+    final DownloadScheduler scheduler;
+    final String urlStr;
+    final File dest;
+    final String host;
+    final DownloadListener downloadListener;
+    final long sequence;
+    final CountDownLatch done = new CountDownLatch(1);
+
+    // guarded by the scheduler
+    int priority;
+    int state = STATE_PENDING;
+    boolean started;
+    boolean pauseRequested;
+    boolean cancelRequested;
+    Cancellation cancellation;
+    long size = -1;
+    Exception exception;
+
+    DownloadHandle(DownloadScheduler scheduler, String urlStr, File dest, String host, int priority,
+                   DownloadListener downloadListener, long sequence) {
+        this.scheduler = scheduler;
+        this.urlStr = urlStr;
+        this.dest = dest;
+        this.host = host;
+        this.priority = priority;
+        this.downloadListener = downloadListener;
+        this.sequence = sequence;
+    }
+
+    public String getUrl() {
+        return urlStr;
+    }
+
+    public File getDest() {
+        return dest;
+    }
+
+    public int getState() {
+        synchronized (scheduler) {
+            return state;
+        }
+    }
+
+    public int getPriority() {
+        synchronized (scheduler) {
+            return priority;
+        }
+    }
+
+    /**
+     * Change the priority, takes effect if the download is still waiting in the queue
+     *
+     * @param priority higher runs first
+     */
+    public void setPriority(int priority) {
+        scheduler.reprioritize(this, priority);
+    }
+
+    /**
+     * Stop the download but keep the partial file, so {@link #resume()} continues from it.
+     *
+     * @return false if the download has already finished
+     */
+    public boolean pause() {
+        return scheduler.pause(this);
+    }
+
+    /**
+     * Put a paused download back into the queue
+     *
+     * @return false if the download was not paused
+     */
+    public boolean resume() {
+        return scheduler.resume(this);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return scheduler.cancel(this, mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return getState() == STATE_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Long get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Long get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Download not finished: " + urlStr);
+        }
+        return result();
+    }
+
+    private Long result() throws ExecutionException {
+        synchronized (scheduler) {
+            if (state == STATE_CANCELLED) {
+                throw new CancellationException("Download cancelled: " + urlStr);
+            }
+            if (state == STATE_FAILED) {
+                throw new ExecutionException(exception);
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Sidecar checkpoint file of a partial download
+ * <p/>
+ * Lives next to the destination as "dest.journal" and records the url, the validators of
+ * the remote file (ETag / Last-Modified), its total length and the byte ranges already on
+ * disk, so a download can continue after a process kill or a network drop. It is rewritten
+ * atomically (temp file then rename) and deleted when the download completes.
+ */
+class DownloadJournal {
+    static final String SUFFIX = ".journal";
+
+    private final File file;
+    private final String urlStr;
+    private final String etag;
+    private final String lastModified;
+    private final long length;
+    // sorted, non-overlapping [start, end) ranges
+    private final List<long[]> ranges = new ArrayList<long[]>();
+
+    DownloadJournal(File dest, String urlStr, String etag, String lastModified, long length) {
+        this.file = fileFor(dest);
+        this.urlStr = urlStr;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    /**
+     * @return the journal of dest written for the same url, null if there is none or it's corrupt
+     */
+    static DownloadJournal load(File dest, String urlStr) {
+        File file = fileFor(dest);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            properties.load(is);
+            if (!urlStr.equals(properties.getProperty("url"))) {
+                return null;
+            }
+            DownloadJournal journal = new DownloadJournal(dest, urlStr, properties.getProperty("etag"),
+                    properties.getProperty("lastModified"), Long.parseLong(properties.getProperty("length")));
+            String ranges = properties.getProperty("ranges", "");
+            for (String range : ranges.split(",")) {
+                int dash = range.indexOf('-');
+                if (dash > 0) {
+                    journal.addRange(Long.parseLong(range.substring(0, dash)),
+                            Long.parseLong(range.substring(dash + 1)));
+                }
+            }
+            return journal;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    static void delete(File dest) {
+        File file = fileFor(dest);
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    private static File fileFor(File dest) {
+        return new File(dest.getPath() + SUFFIX);
+    }
+
+    static String strongETag(String etag) {
+        // weak validators are not allowed in If-Range
+        return etag == null || etag.startsWith("W/") ? null : etag;
+    }
+
+    /**
+     * @return value for an If-Range header, null if the server gave no usable validator
+     */
+    String getValidator() {
+        String strong = strongETag(etag);
+        return strong != null ? strong : lastModified;
+    }
+
+    /**
+     * @return true if the remote file still has the validators recorded in this journal
+     */
+    boolean matches(String etag, String lastModified) {
+        if (this.etag != null || etag != null) {
+            return this.etag != null && this.etag.equals(etag);
+        }
+        return this.lastModified != null && this.lastModified.equals(lastModified);
+    }
+
+    /**
+     * @return total length of the remote file, -1 if unknown
+     */
+    long getLength() {
+        return length;
+    }
+
+    synchronized void addRange(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        int i = 0;
+        while (i < ranges.size() && ranges.get(i)[1] < start) {
+            i++;
+        }
+        // merge every range touching [start, end)
+        while (i < ranges.size() && ranges.get(i)[0] <= end) {
+            long[] range = ranges.remove(i);
+            start = Math.min(start, range[0]);
+            end = Math.max(end, range[1]);
+        }
+        ranges.add(i, new long[]{start, end});
+    }
+
+    /**
+     * @return how many bytes from the beginning of the file are complete
+     */
+    synchronized long getCompletedPrefix() {
+        return ranges.isEmpty() || ranges.get(0)[0] != 0 ? 0 : ranges.get(0)[1];
+    }
+
+    synchronized long getCompletedSize() {
+        long size = 0;
+        for (long[] range : ranges) {
+            size += range[1] - range[0];
+        }
+        return size;
+    }
+
+    /**
+     * @return [start, end) ranges not on disk yet
+     */
+    synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<long[]>();
+        long position = 0;
+        for (long[] range : ranges) {
+            if (range[0] > position) {
+                missing.add(new long[]{position, range[0]});
+            }
+            position = range[1];
+        }
+        if (position < length) {
+            missing.add(new long[]{position, length});
+        }
+        return missing;
+    }
+
+    synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", urlStr);
+        if (etag != null) {
+            properties.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty("lastModified", lastModified);
+        }
+        properties.setProperty("length", String.valueOf(length));
+        StringBuilder builder = new StringBuilder();
+        for (long[] range : ranges) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(range[0]).append('-').append(range[1]);
+        }
+        properties.setProperty("ranges", builder.toString());
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(temp);
+        try {
+            properties.store(os, null);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Can't write journal " + file);
+        }
+    }
+
+    void delete() {
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+}
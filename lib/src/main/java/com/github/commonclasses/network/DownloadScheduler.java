@@ -0,0 +1,298 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import com.github.commonclasses.network.DownloadUtils.DownloadListener;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download queue with priorities and bounded concurrency
+ * <p/>
+ * Requests wait in the queue until both the global and the per host limit of running
+ * transfers allow them to start, the highest priority first and FIFO among equal priorities.
+ * Each request is tracked by a {@link DownloadHandle}, which reports to its own
+ * {@link DownloadListener} and can be cancelled, paused, resumed and reprioritized.
+ * <p/>
+ * Permission Needed
+ * <p/>
+ * <uses-permission android:name="android.permission.INTERNET" />
+ */
+public class DownloadScheduler {
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+
+    private final DownloadClient client;
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final ExecutorService executor;
+
+    // guarded by this
+    private final List<DownloadHandle> pending = new ArrayList<DownloadHandle>();
+    private final List<DownloadHandle> active = new ArrayList<DownloadHandle>();
+    private final Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+    private int running;
+    private long sequence;
+    private boolean shutdown;
+
+    /**
+     * Scheduler on top of {@link DownloadClient#getDefault()}
+     */
+    public DownloadScheduler(int maxConcurrent, int maxPerHost) {
+        this(DownloadClient.getDefault(), maxConcurrent, maxPerHost);
+    }
+
+    /**
+     * @param client        Client to download with
+     * @param maxConcurrent Running transfers in total
+     * @param maxPerHost    Running transfers to a single host
+     */
+    public DownloadScheduler(DownloadClient client, int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent <= 0 || maxPerHost <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.client = client;
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        this.executor = Executors.newFixedThreadPool(maxConcurrent, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadScheduler-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Enqueue a download with {@link #PRIORITY_NORMAL}
+     */
+    public DownloadHandle enqueue(String urlStr, File dest, DownloadListener downloadListener) {
+        return enqueue(urlStr, dest, PRIORITY_NORMAL, downloadListener);
+    }
+
+    /**
+     * Enqueue a download
+     *
+     * @param urlStr           Remote url
+     * @param dest             Destination file, will be overwritten
+     * @param priority         higher runs first
+     * @param downloadListener Listener, may be null
+     * @return handle of this download
+     */
+    public synchronized DownloadHandle enqueue(String urlStr, File dest, int priority,
+                                               DownloadListener downloadListener) {
+        if (shutdown) {
+            throw new IllegalStateException("Scheduler is shut down");
+        }
+        DownloadHandle handle = new DownloadHandle(this, urlStr, dest, hostOf(urlStr), priority,
+                downloadListener, sequence++);
+        pending.add(handle);
+        promote();
+        return handle;
+    }
+
+    /**
+     * Cancel all downloads and stop the worker threads once the running ones have ended
+     */
+    public void shutdown() {
+        List<DownloadHandle> handles;
+        synchronized (this) {
+            shutdown = true;
+            handles = new ArrayList<DownloadHandle>(pending);
+            handles.addAll(active);
+        }
+        for (DownloadHandle handle : handles) {
+            cancel(handle, true);
+        }
+        // runners already queued still run and finish their cancelled handles
+        executor.shutdown();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    synchronized void reprioritize(DownloadHandle handle, int priority) {
+        handle.priority = priority;
+        promote();
+    }
+
+    synchronized boolean pause(DownloadHandle handle) {
+        switch (handle.state) {
+            case DownloadHandle.STATE_PENDING:
+                pending.remove(handle);
+                handle.state = DownloadHandle.STATE_PAUSED;
+                return true;
+            case DownloadHandle.STATE_RUNNING:
+                handle.pauseRequested = true;
+                handle.cancellation.cancel();
+                return true;
+            default:
+                return handle.state == DownloadHandle.STATE_PAUSED;
+        }
+    }
+
+    synchronized boolean resume(DownloadHandle handle) {
+        if (handle.state == DownloadHandle.STATE_RUNNING && handle.pauseRequested && !handle.cancelRequested) {
+            // not stopped yet, keep it going
+            handle.pauseRequested = false;
+            return true;
+        }
+        if (handle.state != DownloadHandle.STATE_PAUSED || shutdown) {
+            return false;
+        }
+        handle.state = DownloadHandle.STATE_PENDING;
+        pending.add(handle);
+        promote();
+        return true;
+    }
+
+    synchronized boolean cancel(DownloadHandle handle, boolean mayInterruptIfRunning) {
+        switch (handle.state) {
+            case DownloadHandle.STATE_PENDING:
+            case DownloadHandle.STATE_PAUSED:
+                // a paused handle is not in the queue
+                pending.remove(handle);
+                handle.state = DownloadHandle.STATE_CANCELLED;
+                handle.done.countDown();
+                return true;
+            case DownloadHandle.STATE_RUNNING:
+                if (!mayInterruptIfRunning) {
+                    return false;
+                }
+                handle.cancelRequested = true;
+                handle.cancellation.cancel();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Start as many waiting downloads as the limits allow
+     */
+    private void promote() {
+        while (running < maxConcurrent) {
+            DownloadHandle next = null;
+            for (DownloadHandle handle : pending) {
+                if (runningTo(handle.host) >= maxPerHost) {
+                    continue;
+                }
+                if (next == null || handle.priority > next.priority
+                        || (handle.priority == next.priority && handle.sequence < next.sequence)) {
+                    next = handle;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            pending.remove(next);
+            start(next);
+        }
+    }
+
+    private void start(final DownloadHandle handle) {
+        final boolean append = handle.started;
+        final Cancellation cancellation = new Cancellation();
+        handle.state = DownloadHandle.STATE_RUNNING;
+        handle.started = true;
+        handle.pauseRequested = false;
+        handle.cancellation = cancellation;
+        running++;
+        active.add(handle);
+        runningPerHost.put(handle.host, runningTo(handle.host) + 1);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long size = -1;
+                Exception exception = null;
+                try {
+                    size = client.download(handle.urlStr, handle.dest, append, handle.downloadListener,
+                            null, cancellation);
+                } catch (Exception e) {
+                    exception = e;
+                }
+                finished(handle, size, exception);
+            }
+        });
+    }
+
+    private synchronized void finished(DownloadHandle handle, long size, Exception exception) {
+        running--;
+        active.remove(handle);
+        runningPerHost.put(handle.host, runningTo(handle.host) - 1);
+
+        if (handle.cancelRequested) {
+            handle.state = DownloadHandle.STATE_CANCELLED;
+        } else if (exception != null && handle.cancellation.isCancelled()) {
+            // stopped by pause(), unless resume() came before the transfer noticed
+            if (handle.pauseRequested || shutdown) {
+                handle.state = DownloadHandle.STATE_PAUSED;
+            } else {
+                handle.state = DownloadHandle.STATE_PENDING;
+                pending.add(handle);
+            }
+        } else if (exception != null) {
+            handle.state = DownloadHandle.STATE_FAILED;
+            handle.exception = exception;
+        } else {
+            handle.state = DownloadHandle.STATE_COMPLETED;
+            handle.size = size;
+        }
+        if (handle.state != DownloadHandle.STATE_PAUSED && handle.state != DownloadHandle.STATE_PENDING) {
+            handle.done.countDown();
+        }
+        if (!shutdown) {
+            promote();
+        }
+    }
+
+    private int runningTo(String host) {
+        Integer count = runningPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private static String hostOf(String urlStr) {
+        try {
+            return new URL(urlStr).getHost();
+        } catch (MalformedURLException e) {
+            return urlStr;
+        }
+    }
+}
@@ -20,33 +20,18 @@
 package com.github.commonclasses.network;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
-
-import org.apache.http.Header;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 
 /**
  * Network download tool
  * <p/>
+ * Static shortcuts of {@link DownloadClient#getDefault()}, so every download shares one
+ * connection pool. Use your own {@link DownloadClient} for other timeouts or pool sizes.
+ * <p/>
  * Permission Needed
  * <p/>
  * <uses-permission android:name="android.permission.INTERNET" />
  */
 public class DownloadUtils {
-    private static final int CONNECT_TIMEOUT = 10000;
-    private static final int DATA_TIMEOUT = 40000;
-    private final static int DATA_BUFFER = 8192;
 
     public interface DownloadListener {
         public void downloading(int progress);
@@ -56,91 +41,25 @@ public class DownloadUtils {
         public void exception(Exception e);
     }
 
+    /**
+     * @see DownloadClient#download(String, File, boolean, DownloadListener)
+     */
     public static long download(String urlStr, File dest, boolean append, DownloadListener downloadListener) throws Exception {
-        int downloadProgress = 0;
-        long remoteSize = 0;
-        int currentSize = 0;
-        long totalSize = -1;
-
-        if (!append && dest.exists() && dest.isFile()) {
-            dest.delete();
-        }
-
-        if (append && dest.exists() && dest.exists()) {
-            FileInputStream fis = null;
-            try {
-                fis = new FileInputStream(dest);
-                currentSize = fis.available();
-            } catch (IOException e) {
-                throw e;
-            } finally {
-                if (fis != null) {
-                    fis.close();
-                }
-            }
-        }
-
-        HttpGet request = new HttpGet(urlStr);
-        request.setHeader("Content-Type", "application/x-www-form-urlencoded");
-
-        if (currentSize > 0) {
-            request.addHeader("RANGE", "bytes=" + currentSize + "-");
-        }
-
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
-        HttpConnectionParams.setSoTimeout(params, DATA_TIMEOUT);
-        HttpClient httpClient = new DefaultHttpClient(params);
-
-        InputStream is = null;
-        FileOutputStream os = null;
-        try {
-            HttpResponse response = httpClient.execute(request);
-            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                is = response.getEntity().getContent();
-                remoteSize = response.getEntity().getContentLength();
-                Header contentEncoding = response.getFirstHeader("Content-Encoding");
-                if (contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase("gzip")) {
-                    is = new GZIPInputStream(is);
-                }
-                os = new FileOutputStream(dest, append);
-                byte buffer[] = new byte[DATA_BUFFER];
-                int readSize = 0;
-                while ((readSize = is.read(buffer)) > 0) {
-                    os.write(buffer, 0, readSize);
-                    os.flush();
-                    totalSize += readSize;
-                    if (downloadListener != null) {
-                        downloadProgress = (int) (totalSize * 100 / remoteSize);
-                        downloadListener.downloading(downloadProgress);
-                    }
-                }
-                if (totalSize < 0) {
-                    totalSize = 0;
-                }
-            }
-        } catch (Exception e) {
-            if (downloadListener != null) {
-                downloadListener.exception(e);
-            }
-            e.printStackTrace();
-        } finally {
-            if (os != null) {
-                os.close();
-            }
-            if (is != null) {
-                is.close();
-            }
-        }
-
-        if (totalSize < 0) {
-            throw new Exception("Download file fail: " + urlStr);
-        }
+        return DownloadClient.getDefault().download(urlStr, dest, append, downloadListener);
+    }
 
-        if (downloadListener != null) {
-            downloadListener.downloaded(dest);
-        }
+    /**
+     * @see DownloadClient#download(String, File, DownloadListener, StreamStage...)
+     */
+    public static long download(String urlStr, File dest, DownloadListener downloadListener, StreamStage... stages)
+            throws Exception {
+        return DownloadClient.getDefault().download(urlStr, dest, downloadListener, stages);
+    }
 
-        return totalSize;
+    /**
+     * @see DownloadClient#download(String, File, int, DownloadListener)
+     */
+    public static long download(String urlStr, File dest, int segments, DownloadListener downloadListener) throws Exception {
+        return DownloadClient.getDefault().download(urlStr, dest, segments, downloadListener);
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fail the download as soon as more than a given number of bytes passed through
+ */
+public class SizeLimitStage implements StreamStage {
+    private final long maxSize;
+
+    /**
+     * @param maxSize Byte limit
+     */
+    public SizeLimitStage(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            private long size;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int readSize = super.read(buffer, offset, length);
+                if (readSize > 0) {
+                    count(readSize);
+                }
+                return readSize;
+            }
+
+            private void count(int readSize) throws IOException {
+                size += readSize;
+                if (size > maxSize) {
+                    throw new IOException("Size limit of " + maxSize + " bytes exceeded");
+                }
+            }
+        };
+    }
+
+    @Override
+    public void finish() {
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * One stage of the download stream pipeline
+ * <p/>
+ * Stages wrap the body stream in the order they are given, so they all run in the same
+ * single pass that writes the file, e.g. verifying a digest while downloading instead of
+ * reading the whole file from disk again afterwards. A stage keeps the state of one
+ * transfer, create new stages for every download.
+ *
+ * @see DownloadClient#download(String, java.io.File, DownloadUtils.DownloadListener, StreamStage...)
+ */
+public interface StreamStage {
+    /**
+     * @param in stream of the previous stage, the raw body for the first one
+     * @return stream for the next stage
+     */
+    public InputStream wrap(InputStream in) throws IOException;
+
+    /**
+     * Called once the whole body went through the stage, throw to fail the download
+     */
+    public void finish() throws IOException;
+}
@@ -0,0 +1,302 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import android.content.Context;
+import android.os.Handler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous counterpart of {@link FileOperations}
+ * <p/>
+ * Operations run on a dedicated, bounded pool of low priority I/O threads and return a
+ * {@link Future}; an optional {@link Callback} is called on the given Handler's thread, or on
+ * the I/O thread if there is no Handler.
+ * <p/>
+ * A request for an operation which is already queued or running on the same path joins it
+ * instead of running again: it gets the same Future and its callback is called with the
+ * same result. Cancelling that Future cancels it for everyone who joined.
+ * <p/>
+ * After {@link #shutdown()}, requests throw a {@link RejectedExecutionException}.
+ */
+public class AsyncFileOperations {
+    public static final int DEFAULT_THREADS = 2;
+
+    private static AsyncFileOperations defaultInstance;
+
+    private final ExecutorService executor;
+    private final Handler handler;
+    private final ConcurrentMap<String, Operation<?>> inFlight = new ConcurrentHashMap<String, Operation<?>>();
+
+    /**
+     * Result of an asynchronous operation
+     */
+    public interface Callback<T> {
+        public void completed(T result);
+
+        public void failed(Exception e);
+    }
+
+    /**
+     * Shared instance with {@link #DEFAULT_THREADS} threads, calling back on the I/O thread
+     */
+    public static synchronized AsyncFileOperations getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new AsyncFileOperations(DEFAULT_THREADS, null);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @param threads I/O threads, flash storage gains little beyond 2-4
+     * @param handler Handler to call back on, e.g. one of the main Looper; null to call back on
+     *                the I/O thread
+     */
+    public AsyncFileOperations(int threads, Handler handler) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be positive");
+        }
+        this.handler = handler;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AsyncFileOperations-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Copy file, see {@link FileOperations#copyFile(File, File)}
+     */
+    public Future<Void> copyFile(final File src, final File tgt, Callback<Void> callback) {
+        return submit("copy:" + src.getAbsolutePath() + "\n" + tgt.getAbsolutePath(), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                FileOperations.copyFile(src, tgt);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Copy a directory tree on one I/O thread, see
+     * {@link FileOperations#copyDirectory(File, File, int)}
+     *
+     * @return Future of the bytes copied
+     */
+    public Future<Long> copyDirectory(final File src, final File tgt, Callback<Long> callback) {
+        return submit("copyDirectory:" + src.getAbsolutePath() + "\n" + tgt.getAbsolutePath(), new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return FileOperations.copyDirectory(src, tgt, 1);
+            }
+        }, callback);
+    }
+
+    /**
+     * Delete a file, see {@link FileOperations#deleteFile(Context, String)}
+     *
+     * @return Future of true for success
+     */
+    public Future<Boolean> deleteFile(final Context context, final String filename, Callback<Boolean> callback) {
+        return submit("deleteFile:" + filename, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return FileOperations.deleteFile(context, filename);
+            }
+        }, callback);
+    }
+
+    /**
+     * Delete a file
+     *
+     * @return Future of true for success
+     */
+    public Future<Boolean> delete(final File file, Callback<Boolean> callback) {
+        return submit("delete:" + file.getAbsolutePath(), new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return file.delete();
+            }
+        }, callback);
+    }
+
+    /**
+     * Resolve a file name to internal or external storage, see
+     * {@link FileOperations#getFile(Context, String)}
+     */
+    public Future<File> getFile(final Context context, final String filename, Callback<File> callback) {
+        return submit("resolve:" + filename, new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return FileOperations.getFile(context, filename);
+            }
+        }, callback);
+    }
+
+    /**
+     * Read a whole file, see {@link FileOperations#readFully(File)}
+     */
+    public Future<byte[]> readFully(final File file, Callback<byte[]> callback) {
+        return submit("read:" + file.getAbsolutePath(), new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return FileOperations.readFully(file);
+            }
+        }, callback);
+    }
+
+    /**
+     * Stop the I/O threads, queued operations are cancelled
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        for (Operation<?> operation : inFlight.values()) {
+            operation.cancel(false);
+        }
+    }
+
+    // every key prefix belongs to a single operation, so to a single result type
+    @SuppressWarnings("unchecked")
+    private <T> Future<T> submit(String key, Callable<T> callable, Callback<T> callback) {
+        Operation<T> operation = new Operation<T>(key, callable);
+        while (true) {
+            Operation<?> existing = inFlight.putIfAbsent(key, operation);
+            if (existing == null) {
+                try {
+                    executor.execute(operation);
+                } catch (RejectedExecutionException e) {
+                    // shut down, don't leave it for others to join; cancelling it fails
+                    // whoever joined meanwhile
+                    inFlight.remove(key, operation);
+                    operation.cancel(false);
+                    throw e;
+                }
+                break;
+            }
+            if (!existing.isDone()) {
+                operation = (Operation<T>) existing;
+                break;
+            }
+            // cancelled, and not removed yet, start a new one
+            inFlight.remove(key, existing);
+        }
+        if (callback != null) {
+            operation.addCallback(callback);
+        }
+        return operation;
+    }
+
+    private class Operation<T> extends FutureTask<T> {
+        private final String key;
+        // guarded by this
+        private final List<Callback<T>> callbacks = new ArrayList<Callback<T>>(1);
+        private boolean finished;
+
+        Operation(String key, Callable<T> callable) {
+            super(callable);
+            this.key = key;
+        }
+
+        void addCallback(Callback<T> callback) {
+            synchronized (this) {
+                if (!finished) {
+                    callbacks.add(callback);
+                    return;
+                }
+            }
+            deliver(callback);
+        }
+
+        // leave the map before the result is set, so nobody joins a finished operation
+        @Override
+        protected void set(T result) {
+            inFlight.remove(key, this);
+            super.set(result);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            inFlight.remove(key, this);
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            inFlight.remove(key, this);
+            List<Callback<T>> toCall;
+            synchronized (this) {
+                finished = true;
+                toCall = new ArrayList<Callback<T>>(callbacks);
+                callbacks.clear();
+            }
+            for (Callback<T> callback : toCall) {
+                deliver(callback);
+            }
+        }
+
+        private void deliver(final Callback<T> callback) {
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    T result;
+                    try {
+                        result = get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        callback.failed(cause instanceof Exception ? (Exception) cause : e);
+                        return;
+                    } catch (CancellationException e) {
+                        callback.failed(e);
+                        return;
+                    } catch (InterruptedException e) {
+                        callback.failed(e);
+                        return;
+                    }
+                    callback.completed(result);
+                }
+            };
+            if (handler == null) {
+                runnable.run();
+            } else {
+                handler.post(runnable);
+            }
+        }
+    }
+}
@@ -0,0 +1,715 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import com.github.commonclasses.metrics.Counter;
+import com.github.commonclasses.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Small embedded key-value store for blobs, kept in append-only segment files
+ * <p/>
+ * Every put or delete appends one CRC protected record to the active segment, which is
+ * sealed once it grows past the segment size and a new one is started. An in-memory index
+ * maps each key to its latest record; it's rebuilt on open by reading the segments in
+ * order, and a torn record at the end of the last segment is cut off.
+ * <p/>
+ * A durable put waits for an fsync, but concurrent writers share it: whoever syncs first
+ * syncs everything written so far (group commit). A put which is not durable returns once
+ * the record is written and becomes durable with the next sync.
+ * <p/>
+ * When more than half of the sealed data is overwritten or deleted, a background thread
+ * compacts all sealed segments into one, which is committed by an atomic rename.
+ * <p/>
+ * Thread safe. Use one instance per directory.
+ */
+public class BlobStore implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+    private static final int MAX_KEY_SIZE = 0xFFFF;
+    private static final String SEGMENT = ".seg";
+    // segment written by compaction, replaces all segments with the same or a lower id
+    private static final String COMPACTED = ".cseg";
+    private static final String TEMP = ".tmp";
+    private static final Counter COMPACTION_ERRORS = Metrics.counter("blobstore.compaction.errors");
+
+    private final File directory;
+    private final long segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ExecutorService compactor;
+    private final Object compactMonitor = new Object();
+
+    // guarded by lock
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private Segment active;
+    private long totalBytes;
+    private long garbageBytes;
+    private long writtenSequence;
+    private boolean compacting;
+    private boolean closed;
+
+    // guarded by syncMonitor
+    private final Object syncMonitor = new Object();
+    private long syncedSequence;
+    private boolean syncing;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long size;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+
+        void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public BlobStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open a store, creating the directory if needed
+     *
+     * @param directory   Directory holding the segment files
+     * @param segmentSize Size after which the active segment is sealed
+     * @throws IOException
+     */
+    public BlobStore(File directory, long segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BlobStore-compactor");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            open();
+        } catch (IOException e) {
+            closeSegments();
+            compactor.shutdown();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + directory);
+        }
+        TreeMap<Integer, File> found = new TreeMap<Integer, File>();
+        int compacted = -1;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP)) {
+                file.delete();
+            } else if (name.endsWith(COMPACTED)) {
+                compacted = Math.max(compacted, parseId(name, COMPACTED));
+            }
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int id;
+            if (name.endsWith(SEGMENT)) {
+                id = parseId(name, SEGMENT);
+                if (id <= compacted) {
+                    // finish a compaction interrupted after its commit
+                    file.delete();
+                    continue;
+                }
+            } else if (name.endsWith(COMPACTED)) {
+                id = parseId(name, COMPACTED);
+                if (id < compacted) {
+                    file.delete();
+                    continue;
+                }
+            } else {
+                continue;
+            }
+            found.put(id, file);
+        }
+        for (Map.Entry<Integer, File> entry : found.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), entry.getValue());
+            segments.put(segment.id, segment);
+            scan(segment, entry.getKey().equals(found.lastKey()));
+            totalBytes += segment.size;
+        }
+        if (segments.isEmpty() || segments.lastKey() == compacted) {
+            int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            active = new Segment(id, new File(directory, id + SEGMENT));
+            segments.put(id, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    private static int parseId(String name, String suffix) throws IOException {
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unknown file in store: " + name);
+        }
+    }
+
+    /**
+     * Index one segment. Sealed segments were synced before they were sealed, so only the
+     * last one has its checksums verified and may be cut at a torn record.
+     */
+    private void scan(Segment segment, boolean last) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 64 * 1024));
+        long position = 0;
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[4096];
+        try {
+            while (position < segment.size) {
+                int length;
+                String key;
+                boolean tombstone;
+                try {
+                    int checksum = input.readInt();
+                    int keySize = input.readInt();
+                    int valueSize = input.readInt();
+                    if (keySize < 0 || keySize > MAX_KEY_SIZE || valueSize < TOMBSTONE) {
+                        throw new EOFException();
+                    }
+                    tombstone = valueSize == TOMBSTONE;
+                    length = HEADER_SIZE + keySize + Math.max(valueSize, 0);
+                    if (position + length > segment.size) {
+                        throw new EOFException();
+                    }
+                    byte[] keyBytes = new byte[keySize];
+                    input.readFully(keyBytes);
+                    key = new String(keyBytes, "UTF-8");
+                    if (last) {
+                        crc.reset();
+                        crc.update(intBytes(keySize, valueSize));
+                        crc.update(keyBytes);
+                        for (int remaining = Math.max(valueSize, 0); remaining > 0; ) {
+                            int read = input.read(buffer, 0, Math.min(remaining, buffer.length));
+                            if (read == -1) {
+                                throw new EOFException();
+                            }
+                            crc.update(buffer, 0, read);
+                            remaining -= read;
+                        }
+                        if ((int) crc.getValue() != checksum) {
+                            throw new EOFException();
+                        }
+                    } else {
+                        skipFully(input, Math.max(valueSize, 0));
+                    }
+                } catch (EOFException e) {
+                    if (!last) {
+                        throw new IOException("Corrupt segment " + segment.file);
+                    }
+                    // torn write at the end of the log
+                    segment.channel.truncate(position);
+                    segment.size = position;
+                    break;
+                }
+                Location previous = tombstone ? index.remove(key) : index.put(key, new Location(segment.id, position, length));
+                if (previous != null) {
+                    garbageBytes += previous.length;
+                }
+                if (tombstone) {
+                    garbageBytes += length;
+                }
+                position += length;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void skipFully(DataInputStream input, int count) throws IOException {
+        while (count > 0) {
+            int skipped = input.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static byte[] intBytes(int a, int b) {
+        return ByteBuffer.allocate(8).putInt(a).putInt(b).array();
+    }
+
+    private static ByteBuffer encode(byte[] key, byte[] value) {
+        int valueSize = value == null ? TOMBSTONE : value.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + (value == null ? 0 : value.length));
+        record.putInt(0).putInt(key.length).putInt(valueSize).put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Store a value and wait until it's durable
+     */
+    public void put(String key, byte[] value) throws IOException {
+        put(key, value, true);
+    }
+
+    /**
+     * Store a value
+     *
+     * @param key     Key, up to 64KB in UTF-8
+     * @param value   Value
+     * @param durable true to wait for an fsync shared with concurrent writers, false to return
+     *                once the record is written, it becomes durable with the next sync
+     * @throws IOException
+     */
+    public void put(String key, byte[] value, boolean durable) throws IOException {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        long sequence = append(key, value);
+        if (durable) {
+            awaitSynced(sequence);
+        }
+    }
+
+    /**
+     * Delete a value and wait until it's durable
+     *
+     * @return true if the key existed
+     */
+    public boolean delete(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (!index.containsKey(key)) {
+                return false;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        awaitSynced(append(key, null));
+        return true;
+    }
+
+    private long append(String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        if (keyBytes.length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key too long");
+        }
+        ByteBuffer record = encode(keyBytes, value);
+        int length = record.remaining();
+        boolean compact;
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (active.size > 0 && active.size + length > segmentSize) {
+                roll();
+            }
+            long offset = active.size;
+            while (record.hasRemaining()) {
+                active.channel.write(record, offset + record.position());
+            }
+            active.size += length;
+            totalBytes += length;
+            Location previous = value == null ? index.remove(key) : index.put(key, new Location(active.id, offset, length));
+            if (previous != null) {
+                garbageBytes += previous.length;
+            }
+            if (value == null) {
+                garbageBytes += length;
+            }
+            compact = shouldCompact();
+            if (compact) {
+                compacting = true;
+            }
+            writtenSequence++;
+            if (compact) {
+                scheduleCompaction();
+            }
+            return writtenSequence;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // called with the write lock held
+    private void roll() throws IOException {
+        active.channel.force(false);
+        synchronized (syncMonitor) {
+            syncedSequence = Math.max(syncedSequence, writtenSequence);
+        }
+        int id = active.id + 1;
+        active = new Segment(id, new File(directory, id + SEGMENT));
+        segments.put(id, active);
+    }
+
+    private boolean shouldCompact() {
+        return !compacting && segments.size() > 2 && garbageBytes >= MIN_COMPACTION_GARBAGE
+                && garbageBytes * 2 > totalBytes;
+    }
+
+    private void scheduleCompaction() {
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // the garbage stays until the next compaction
+                    COMPACTION_ERRORS.increment();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until everything up to the given write is synced, syncing it ourselves unless
+     * another writer is already doing so
+     */
+    private void awaitSynced(long sequence) throws IOException {
+        synchronized (syncMonitor) {
+            while (syncedSequence < sequence && syncing) {
+                try {
+                    syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while syncing");
+                }
+            }
+            if (syncedSequence >= sequence) {
+                return;
+            }
+            syncing = true;
+        }
+        long target = 0;
+        boolean synced = false;
+        try {
+            FileChannel channel;
+            lock.readLock().lock();
+            try {
+                checkOpen();
+                target = writtenSequence;
+                channel = active.channel;
+            } finally {
+                lock.readLock().unlock();
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was sealed meanwhile, which synced it
+            }
+            synced = true;
+        } finally {
+            synchronized (syncMonitor) {
+                syncing = false;
+                if (synced) {
+                    syncedSequence = Math.max(syncedSequence, target);
+                }
+                syncMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Make every write so far durable
+     */
+    public void sync() throws IOException {
+        long sequence;
+        lock.readLock().lock();
+        try {
+            sequence = writtenSequence;
+        } finally {
+            lock.readLock().unlock();
+        }
+        awaitSynced(sequence);
+    }
+
+    /**
+     * @return the value, or null if there is none
+     */
+    public byte[] get(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(location.length);
+            FileChannel channel = segments.get(location.segment).channel;
+            while (record.hasRemaining()) {
+                if (channel.read(record, location.offset + record.position()) == -1) {
+                    throw new IOException("Truncated record for " + key);
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 4, location.length - 4);
+            if (record.getInt(0) != (int) crc.getValue()) {
+                throw new IOException("Corrupt record for " + key);
+            }
+            int valueOffset = HEADER_SIZE + record.getInt(4);
+            byte[] value = new byte[location.length - valueOffset];
+            System.arraycopy(record.array(), valueOffset, value, 0, value.length);
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String key) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the keys
+     */
+    public Set<String> keys() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<String>(index.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite all sealed segments into one holding only their live records. Writes carry on
+     * meanwhile; runs in the background on its own when there is enough garbage.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (compactMonitor) {
+            List<Segment> sealed;
+            lock.writeLock().lock();
+            try {
+                checkOpen();
+                compacting = true;
+                if (active.size > 0) {
+                    roll();
+                }
+                sealed = new ArrayList<Segment>(segments.headMap(active.id).values());
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                if (sealed.size() > 1 || (sealed.size() == 1 && garbageIn(sealed.get(0)))) {
+                    compact(sealed);
+                }
+            } finally {
+                lock.writeLock().lock();
+                compacting = false;
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private boolean garbageIn(Segment segment) {
+        lock.readLock().lock();
+        try {
+            long live = 0;
+            for (Location location : index.values()) {
+                if (location.segment == segment.id) {
+                    live += location.length;
+                }
+            }
+            return live < segment.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void compact(List<Segment> sealed) throws IOException {
+        int id = sealed.get(sealed.size() - 1).id;
+        File temp = new File(directory, id + COMPACTED + TEMP);
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+        Map<String, Location> moved = new HashMap<String, Location>();
+        Map<String, Location> from = new HashMap<String, Location>();
+        long position = 0;
+        try {
+            FileChannel out = output.getChannel();
+            out.truncate(0);
+            for (Segment segment : sealed) {
+                // copied, the map's entries change when a key is overwritten
+                Map<String, Location> live = new HashMap<String, Location>();
+                lock.readLock().lock();
+                try {
+                    for (Map.Entry<String, Location> entry : index.entrySet()) {
+                        if (entry.getValue().segment == segment.id) {
+                            live.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                for (Map.Entry<String, Location> entry : live.entrySet()) {
+                    Location location = entry.getValue();
+                    long transferred = 0;
+                    while (transferred < location.length) {
+                        long count = segment.channel.transferTo(location.offset + transferred,
+                                location.length - transferred, out);
+                        if (count <= 0) {
+                            throw new IOException("Truncated segment " + segment.file);
+                        }
+                        transferred += count;
+                    }
+                    moved.put(entry.getKey(), new Location(id, position, location.length));
+                    from.put(entry.getKey(), location);
+                    position += location.length;
+                }
+            }
+            out.force(true);
+        } finally {
+            output.close();
+        }
+        File compacted = new File(directory, id + COMPACTED);
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (!temp.renameTo(compacted)) {
+                temp.delete();
+                throw new IOException("Can't commit compaction " + compacted);
+            }
+            long removed = 0;
+            for (Segment segment : sealed) {
+                segments.remove(segment.id);
+                segment.close();
+                segment.file.delete();
+                removed += segment.size;
+            }
+            Segment segment = new Segment(id, compacted);
+            segments.put(id, segment);
+            for (Map.Entry<String, Location> entry : moved.entrySet()) {
+                Location current = index.get(entry.getKey());
+                // unless it was overwritten or deleted while compacting, which already
+                // counted it as garbage
+                if (current == from.get(entry.getKey())) {
+                    index.put(entry.getKey(), entry.getValue());
+                }
+            }
+            totalBytes += segment.size - removed;
+            garbageBytes -= removed - position;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Store is closed");
+        }
+    }
+
+    /**
+     * Sync and close the store
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            active.channel.force(false);
+            closed = true;
+            closeSegments();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void closeSegments() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+    }
+}
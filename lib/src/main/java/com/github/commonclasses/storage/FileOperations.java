@@ -27,8 +27,21 @@ import android.net.Uri;
 import android.os.Environment;
 import android.provider.MediaStore;
 import com.github.commonclasses.logwrapper.LogWrapper;
+import com.github.commonclasses.metrics.Counter;
+import com.github.commonclasses.metrics.Histogram;
+import com.github.commonclasses.metrics.Metrics;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * File Operations Utils
@@ -36,12 +49,23 @@ import java.io.*;
  * External storage in this class means application's private files, while application
  * is removed, these files will be deleted even though they are in the external storage
  * <p/>
+ * Copies and deletes are reported as "file.*" to {@link Metrics} when it's enabled.
+ * <p/>
  * Permission Needed
  * <p/>
  * <uses-permission android:name="android.permission.WRITE_EXTERNAL_STORAGE" />
  * <uses-permission android:name="android.permission.READ_EXTERNAL_STORAGE" />
  */
 public class FileOperations {
+    private static final int COPY_BUFFER = 64 * 1024;
+    // some kernels refuse very large single transfers
+    private static final long TRANSFER_CHUNK = 64 * 1024 * 1024;
+
+    private static final Counter COPIES = Metrics.counter("file.copies");
+    private static final Counter COPY_BYTES = Metrics.counter("file.copy.bytes");
+    private static final Counter COPY_ERRORS = Metrics.counter("file.copy.errors");
+    private static final Histogram COPY_TIME = Metrics.histogram("file.copy.time");
+    static final Counter DELETES = Metrics.counter("file.deletes");
 
     /**
      * Check if external storage of this mobile is available
@@ -83,6 +107,41 @@ public class FileOperations {
         return context.openFileOutput(filename, Context.MODE_PRIVATE);
     }
 
+    /**
+     * Replace a file's content atomically: the data is written and synced to a temporary
+     * file which is then renamed over the target, so a crash leaves either the old or the
+     * new content, never a torn file.
+     *
+     * @param file Target file
+     * @param data New content
+     * @throws IOException
+     */
+    public static void writeAtomically(File file, byte[] data) throws IOException {
+        // a unique name, concurrent writers of the same file mustn't share their temporary file
+        File target = file.getAbsoluteFile();
+        String prefix = target.getName().length() < 3 ? target.getName() + "___" : target.getName();
+        File temp = File.createTempFile(prefix, ".tmp", target.getParentFile());
+        boolean written = false;
+        try {
+            FileOutputStream os = new FileOutputStream(temp);
+            try {
+                os.write(data);
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                temp.delete();
+            }
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
     /**
      * Get a file object in internal storage, will be created if it doesn't exist.
      *
@@ -114,14 +173,29 @@ public class FileOperations {
      * @return true for success
      */
     public static boolean deleteInternalStorageFile(Context context, String filename) {
-        if (context.fileList() != null && context.fileList().length > 0) {
-            for (String file : context.fileList()) {
-                if (file.equals(filename)) {
-                    return context.deleteFile(filename);
-                }
-            }
-        }
-        return false;
+        return deleted(getInternalStorageFile(context, filename).isFile() && context.deleteFile(filename));
+    }
+
+    /**
+     * Take one listing of the internal storage directory, to list, measure or delete many
+     * files without listing it again for each of them.
+     *
+     * @param context Context
+     * @return snapshot of internal storage
+     */
+    public static StorageSnapshot snapshotInternalStorage(Context context) {
+        return new StorageSnapshot(context.getFilesDir());
+    }
+
+    /**
+     * Delete many files in internal storage with a single directory listing
+     *
+     * @param context   Context
+     * @param filenames the files' names you wanna delete
+     * @return how many files were deleted
+     */
+    public static int deleteInternalStorageFiles(Context context, Collection<String> filenames) {
+        return snapshotInternalStorage(context).delete(filenames);
     }
 
     /**
@@ -144,23 +218,50 @@ public class FileOperations {
      */
     public static boolean deleteExternalStorageFile(Context context, String filename) {
         File file = new File(context.getExternalFilesDir(null), filename);
-        return file.exists() && file.delete();
+        return deleted(file.exists() && file.delete());
+    }
+
+    private static boolean deleted(boolean deleted) {
+        if (deleted) {
+            DELETES.increment();
+        }
+        return deleted;
+    }
+
+    /**
+     * Take one listing of the external storage directory, to list, measure or delete many
+     * files without listing it again for each of them.
+     *
+     * @param context Context
+     * @return snapshot of external storage
+     */
+    public static StorageSnapshot snapshotExternalStorage(Context context) {
+        return new StorageSnapshot(context.getExternalFilesDir(null));
+    }
+
+    /**
+     * Delete many files in external storage with a single directory listing
+     *
+     * @param context   Context
+     * @param filenames Filenames you want delete in external storage
+     * @return how many files were deleted
+     */
+    public static int deleteExternalStorageFiles(Context context, Collection<String> filenames) {
+        return snapshotExternalStorage(context).delete(filenames);
     }
 
     /**
      * Get a file object with given filename, let the system decide internal or external
      * storage to use.
+     * <p/>
+     * The decision is cached by {@link StorageResolver}.
      *
      * @param context  Context
      * @param filename Given filename
      * @return File object
      */
     public static File getFile(Context context, String filename) {
-        if (isExternalStorageAvailable() && !isExternalStorageOnlyReadable()) {
-            return getExternalStorageFile(context, filename);
-        } else {
-            return getInternalStorageFile(context, filename);
-        }
+        return StorageResolver.get(context).resolve(filename);
     }
 
     /**
@@ -172,31 +273,137 @@ public class FileOperations {
      * @return File object
      */
     public static boolean deleteFile(Context context, String filename) {
-        if (isExternalStorageAvailable() && !isExternalStorageOnlyReadable()) {
+        if (StorageResolver.get(context).isExternal()) {
             return deleteExternalStorageFile(context, filename);
         } else {
             return deleteInternalStorageFile(context, filename);
         }
     }
 
+    /**
+     * Map a file with given filename, let the system decide internal or external storage
+     * to use, the same way as {@link #getFile(Context, String)}.
+     *
+     * @param context  Context
+     * @param filename Given filename
+     * @param writable true to map read-write
+     * @return the mapping, close it when done
+     * @throws IOException
+     */
+    public static MappedFile mapFile(Context context, String filename, boolean writable) throws IOException {
+        return MappedFile.open(getFile(context, filename), writable);
+    }
+
+    /**
+     * Map a file in internal storage
+     *
+     * @param context  Context
+     * @param filename Filename in internal storage
+     * @param writable true to map read-write
+     * @return the mapping, close it when done
+     * @throws IOException
+     */
+    public static MappedFile mapInternalStorageFile(Context context, String filename, boolean writable)
+            throws IOException {
+        return MappedFile.open(getInternalStorageFile(context, filename), writable);
+    }
+
+    /**
+     * Map a file in external storage
+     *
+     * @param context  Context
+     * @param filename Filename in external storage
+     * @param writable true to map read-write
+     * @return the mapping, close it when done
+     * @throws IOException
+     */
+    public static MappedFile mapExternalStorageFile(Context context, String filename, boolean writable)
+            throws IOException {
+        return MappedFile.open(getExternalStorageFile(context, filename), writable);
+    }
+
+    /**
+     * Read a whole file into memory
+     *
+     * @param file File object
+     * @return the file's content
+     * @throws IOException
+     */
+    public static byte[] readFully(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            long length = input.getChannel().size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            byte[] data = new byte[(int) length];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = input.read(data, offset, data.length - offset);
+                if (read == -1) {
+                    throw new EOFException("File truncated while reading: " + file);
+                }
+                offset += read;
+            }
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+
     /**
      * Copy file
+     * <p/>
+     * Uses FileChannel.transferTo, which lets the kernel move the bytes without copying them
+     * through the Java heap, and falls back to a 64KB buffer if the channel refuses.
      *
      * @param src Source file object
      * @param tgt Target file object
      * @throws IOException
      */
     public static void copyFile(File src, File tgt) throws IOException {
-        InputStream input = null;
-        OutputStream output = null;
+        long start = Metrics.start();
+        FileInputStream input = null;
+        FileOutputStream output = null;
+        boolean copied = false;
         try {
             input = new FileInputStream(src);
             output = new FileOutputStream(tgt);
-            byte[] buf = new byte[1024];
-            while (input.read(buf) > 0) {
-                output.write(buf);
+            FileChannel in = input.getChannel();
+            FileChannel out = output.getChannel();
+            long size = in.size();
+            long position = 0;
+            try {
+                while (position < size) {
+                    long transferred = in.transferTo(position, Math.min(size - position, TRANSFER_CHUNK), out);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+            } catch (IOException e) {
+                // some file systems don't support it, continue with plain copy
+                out.position(position);
+            }
+            if (position < size) {
+                in.position(position);
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER);
+                while (in.read(buffer) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
             }
+            copied = true;
+            COPIES.increment();
+            COPY_BYTES.add(out.position());
+            COPY_TIME.recordSince(start);
         } finally {
+            if (!copied) {
+                COPY_ERRORS.increment();
+            }
             if (input != null) {
                 input.close();
             }
@@ -206,8 +413,131 @@ public class FileOperations {
         }
     }
 
+    /**
+     * Copy a directory tree, the files are copied in parallel by a bounded pool of workers.
+     * Every copied file is checked to have the size of its source, and keeps its last
+     * modified time.
+     *
+     * @param src     Source directory
+     * @param tgt     Target directory, will be created if it doesn't exist, not inside src
+     * @param threads How many files to copy at the same time
+     * @return total bytes copied
+     * @throws IOException
+     */
+    public static long copyDirectory(File src, File tgt, int threads) throws IOException {
+        if (!src.isDirectory()) {
+            throw new FileNotFoundException("Not a directory: " + src);
+        }
+        checkNotInside(src, tgt);
+        List<File[]> files = new ArrayList<File[]>();
+        List<File[]> directories = new ArrayList<File[]>();
+        directories.add(new File[]{src, tgt});
+        for (int i = 0; i < directories.size(); i++) {
+            File[] pair = directories.get(i);
+            if (!pair[1].isDirectory() && !pair[1].mkdirs()) {
+                throw new IOException("Can't create directory " + pair[1]);
+            }
+            File[] children = pair[0].listFiles();
+            if (children == null) {
+                throw new IOException("Can't list directory " + pair[0]);
+            }
+            for (File child : children) {
+                File[] childPair = new File[]{child, new File(pair[1], child.getName())};
+                if (child.isDirectory()) {
+                    directories.add(childPair);
+                } else {
+                    files.add(childPair);
+                }
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>(files.size());
+            for (final File[] pair : files) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        copyFile(pair[0], pair[1]);
+                        long size = pair[0].length();
+                        if (pair[1].length() != size) {
+                            throw new IOException("Size mismatch copying " + pair[0] + " to " + pair[1]);
+                        }
+                        pair[1].setLastModified(pair[0].lastModified());
+                        return size;
+                    }
+                }));
+            }
+            long total = 0;
+            for (Future<Long> future : futures) {
+                total += future.get();
+            }
+            return total;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.toString());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Copy of " + src + " interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Move a directory tree, renamed at once when possible, otherwise copied with
+     * {@link #copyDirectory(File, File, int)} and then deleted.
+     *
+     * @param src     Source directory
+     * @param tgt     Target directory, must not exist, not inside src
+     * @param threads How many files to copy at the same time if it can't be renamed
+     * @throws IOException
+     */
+    public static void moveDirectory(File src, File tgt, int threads) throws IOException {
+        if (tgt.exists()) {
+            throw new IOException("Target already exists: " + tgt);
+        }
+        checkNotInside(src, tgt);
+        File parent = tgt.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        if (src.renameTo(tgt)) {
+            return;
+        }
+        copyDirectory(src, tgt, threads);
+        deleteTree(src);
+    }
+
+    /**
+     * A target inside the source would be copied into itself until the disk is full
+     */
+    private static void checkNotInside(File src, File tgt) throws IOException {
+        String srcPath = src.getCanonicalPath();
+        String tgtPath = tgt.getCanonicalPath();
+        if (tgtPath.equals(srcPath) || tgtPath.startsWith(srcPath.endsWith(File.separator)
+                ? srcPath : srcPath + File.separator)) {
+            throw new IOException("Target " + tgt + " is inside source " + src);
+        }
+    }
+
+    private static void deleteTree(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        if (file.delete()) {
+            DELETES.increment();
+        } else if (file.exists()) {
+            throw new IOException("Can't delete " + file);
+        }
+    }
+
     /**
      * Gets the content:// URI  from the given corresponding path to a file
+     * <p/>
+     * This runs one query per file, use {@link MediaStoreResolver} to resolve many files.
      *
      * @param context Context
      * @param file    File Object
@@ -221,11 +551,19 @@ public class FileOperations {
                 MediaStore.Images.Media.DATA + "=? ",
                 new String[]{filePath}, null);
         if (cursor != null && cursor.moveToFirst()) {
-            int id = cursor.getInt(cursor
-                    .getColumnIndex(MediaStore.MediaColumns._ID));
+            int id;
+            try {
+                id = cursor.getInt(cursor
+                        .getColumnIndex(MediaStore.MediaColumns._ID));
+            } finally {
+                cursor.close();
+            }
             Uri baseUri = Uri.parse("content://media/external/images/media");
             return Uri.withAppendedPath(baseUri, "" + id);
         } else {
+            if (cursor != null) {
+                cursor.close();
+            }
             if (file.exists()) {
                 ContentValues values = new ContentValues();
                 values.put(MediaStore.Images.Media.DATA, filePath);
@@ -242,20 +580,24 @@ public class FileOperations {
      *
      * @param uri             The content:// URI to find the file path from
      * @param contentResolver The content resolver to use to perform the query.
-     * @return the file path as a string
+     * @return the file path as a string, or null if the URI is unknown
      */
     public static String getFilePathFromUri(Uri uri,
                                             ContentResolver contentResolver) {
-        String filePath;
         String[] filePathColumn = {MediaStore.MediaColumns.DATA};
 
         Cursor cursor = contentResolver.query(uri, filePathColumn, null, null, null);
-
-        cursor.moveToFirst();
-
-        int columnIndex = cursor.getColumnIndex(filePathColumn[0]);
-        filePath = cursor.getString(columnIndex);
-        cursor.close();
-        return filePath;
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            int columnIndex = cursor.getColumnIndex(filePathColumn[0]);
+            return cursor.getString(columnIndex);
+        } finally {
+            cursor.close();
+        }
     }
 }
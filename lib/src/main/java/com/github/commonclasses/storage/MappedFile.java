@@ -0,0 +1,311 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Memory mapped file with random access by absolute position
+ * <p/>
+ * The file is mapped in windows (64MB by default) on first access, so files larger than
+ * 2GB work and only the touched parts use address space. Neighbour windows overlap by
+ * 8 bytes, a typed value is always read from a single window.
+ * <p/>
+ * Writes reach the file after {@link #force()}, or whenever the system flushes the pages.
+ * Call {@link #close()} when done, the mapping must not be used after it.
+ *
+ * @see FileOperations#mapFile(android.content.Context, String, boolean)
+ */
+public class MappedFile {
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int OVERLAP = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean writable;
+    private final long size;
+    private final int windowSize;
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+    private volatile boolean closed;
+
+    private MappedFile(RandomAccessFile file, boolean writable, long size, int windowSize) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.writable = writable;
+        this.size = size;
+        this.windowSize = windowSize;
+        this.windows = new AtomicReferenceArray<MappedByteBuffer>((int) ((size + windowSize - 1) / windowSize));
+    }
+
+    /**
+     * Map a whole existing file
+     *
+     * @param file     File to map
+     * @param writable true for read-write
+     * @return the mapping
+     * @throws IOException
+     */
+    public static MappedFile open(File file, boolean writable) throws IOException {
+        return open(file, writable, -1, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Map a file, a writable one is created or grown to the given size first
+     *
+     * @param file       File to map
+     * @param writable   true for read-write
+     * @param size       Size to map, -1 for the current file size
+     * @param windowSize Bytes mapped at a time
+     * @return the mapping
+     * @throws IOException
+     */
+    public static MappedFile open(File file, boolean writable, long size, int windowSize) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            if (size < 0) {
+                size = raf.length();
+            } else if (raf.length() < size) {
+                if (!writable) {
+                    throw new IOException("File " + file + " is shorter than " + size);
+                }
+                raf.setLength(size);
+            }
+            return new MappedFile(raf, writable, size, windowSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public byte getByte(long position) throws IOException {
+        check(position, 1);
+        return window(position).get(offset(position));
+    }
+
+    public short getShort(long position) throws IOException {
+        check(position, 2);
+        return window(position).getShort(offset(position));
+    }
+
+    public int getInt(long position) throws IOException {
+        check(position, 4);
+        return window(position).getInt(offset(position));
+    }
+
+    public long getLong(long position) throws IOException {
+        check(position, 8);
+        return window(position).getLong(offset(position));
+    }
+
+    public float getFloat(long position) throws IOException {
+        check(position, 4);
+        return window(position).getFloat(offset(position));
+    }
+
+    public double getDouble(long position) throws IOException {
+        check(position, 8);
+        return window(position).getDouble(offset(position));
+    }
+
+    /**
+     * Read bytes into an array, may cross windows
+     */
+    public void get(long position, byte[] dst, int offset, int length) throws IOException {
+        check(position, length);
+        while (length > 0) {
+            MappedByteBuffer window = window(position);
+            int windowOffset = offset(position);
+            int chunk = Math.min(length, windowSize - windowOffset);
+            ByteBuffer view = window.duplicate();
+            view.position(windowOffset);
+            view.get(dst, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    public void putByte(long position, byte value) throws IOException {
+        checkWrite(position, 1);
+        window(position).put(offset(position), value);
+    }
+
+    public void putShort(long position, short value) throws IOException {
+        checkWrite(position, 2);
+        window(position).putShort(offset(position), value);
+    }
+
+    public void putInt(long position, int value) throws IOException {
+        checkWrite(position, 4);
+        window(position).putInt(offset(position), value);
+    }
+
+    public void putLong(long position, long value) throws IOException {
+        checkWrite(position, 8);
+        window(position).putLong(offset(position), value);
+    }
+
+    public void putFloat(long position, float value) throws IOException {
+        checkWrite(position, 4);
+        window(position).putFloat(offset(position), value);
+    }
+
+    public void putDouble(long position, double value) throws IOException {
+        checkWrite(position, 8);
+        window(position).putDouble(offset(position), value);
+    }
+
+    /**
+     * Write bytes from an array, may cross windows
+     */
+    public void put(long position, byte[] src, int offset, int length) throws IOException {
+        checkWrite(position, length);
+        while (length > 0) {
+            MappedByteBuffer window = window(position);
+            int windowOffset = offset(position);
+            int chunk = Math.min(length, windowSize - windowOffset);
+            ByteBuffer view = window.duplicate();
+            view.position(windowOffset);
+            view.put(src, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Write the modified pages of all mapped windows to the file
+     */
+    public void force() {
+        for (int i = 0; i < windows.length(); i++) {
+            MappedByteBuffer window = windows.get(i);
+            if (window != null) {
+                window.force();
+            }
+        }
+    }
+
+    /**
+     * Unmap all windows (as far as the platform allows it) and close the file
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (int i = 0; i < windows.length(); i++) {
+            MappedByteBuffer window = windows.getAndSet(i, null);
+            if (window != null) {
+                if (writable) {
+                    window.force();
+                }
+                unmap(window);
+            }
+        }
+        channel.close();
+        file.close();
+    }
+
+    private MappedByteBuffer window(long position) throws IOException {
+        if (closed) {
+            throw new IOException("Mapped file is closed");
+        }
+        int index = (int) (position / windowSize);
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            long start = (long) index * windowSize;
+            long length = Math.min(size - start, (long) windowSize + OVERLAP);
+            window = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    start, length);
+            window.order(ByteOrder.BIG_ENDIAN);
+            if (!windows.compareAndSet(index, null, window)) {
+                // another thread mapped it first
+                unmap(window);
+                window = windows.get(index);
+            }
+        }
+        return window;
+    }
+
+    private int offset(long position) {
+        return (int) (position % windowSize);
+    }
+
+    private void check(long position, int length) {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IndexOutOfBoundsException("Position " + position + " length " + length + " size " + size);
+        }
+    }
+
+    private void checkWrite(long position, int length) {
+        if (!writable) {
+            throw new UnsupportedOperationException("Mapped read only");
+        }
+        check(position, length);
+    }
+
+    /**
+     * Release a mapping now instead of waiting for the garbage collector, through the
+     * hidden free() on Android or the cleaner on the JVM. Does nothing if neither exists.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method free = buffer.getClass().getMethod("free");
+            free.setAccessible(true);
+            free.invoke(buffer);
+            return;
+        } catch (Exception e) {
+            // not Android
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolve files to MediaStore image content:// URIs in batches
+ * <p/>
+ * Instead of one query per file, paths are looked up with one <code>_data IN (...)</code>
+ * query per batch, and the existing files MediaStore doesn't know yet are added with a
+ * single bulkInsert per batch. Resolved URIs are kept in a bounded LRU cache, call
+ * {@link #invalidate(String)} when a file is moved or deleted.
+ * <p/>
+ * Thread safe.
+ */
+public class MediaStoreResolver {
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    // SQLite allows 999 bound arguments per statement
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int MAX_BATCH_SIZE = 999;
+
+    private static final Uri CONTENT_URI = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+    private static final String[] PROJECTION = {MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DATA};
+
+    private final ContentResolver contentResolver;
+    private final int batchSize;
+    private final Map<String, Uri> cache;
+
+    public MediaStoreResolver(ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_CACHE_SIZE, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param contentResolver ContentResolver
+     * @param cacheSize       how many path to Uri mappings are kept
+     * @param batchSize       how many paths go in one query, up to 999
+     */
+    public MediaStoreResolver(ContentResolver contentResolver, final int cacheSize, int batchSize) {
+        if (cacheSize < 0 || batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("cacheSize " + cacheSize + ", batchSize " + batchSize);
+        }
+        this.contentResolver = contentResolver;
+        this.batchSize = batchSize;
+        // access ordered, the eldest entry is the least recently used
+        this.cache = new LinkedHashMap<String, Uri>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Uri> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the content:// URI of one file, inserting it into MediaStore if it exists but
+     * isn't there yet
+     *
+     * @param file File Object
+     * @return content Uri, or null if the file is unknown and doesn't exist
+     */
+    public Uri getUri(File file) {
+        List<File> files = new ArrayList<File>(1);
+        files.add(file);
+        return getUris(files).get(file.getAbsolutePath());
+    }
+
+    /**
+     * Gets the content:// URIs of many files, inserting the existing ones MediaStore
+     * doesn't know yet
+     *
+     * @param files File Objects
+     * @return Uri by absolute path, files which are unknown and don't exist are left out
+     */
+    public Map<String, Uri> getUris(Collection<File> files) {
+        Map<String, Uri> result = new HashMap<String, Uri>();
+        List<String> pending = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        synchronized (cache) {
+            for (File file : files) {
+                String path = file.getAbsolutePath();
+                if (!seen.add(path)) {
+                    continue;
+                }
+                Uri uri = cache.get(path);
+                if (uri != null) {
+                    result.put(path, uri);
+                } else {
+                    pending.add(path);
+                }
+            }
+        }
+        for (int start = 0; start < pending.size(); start += batchSize) {
+            List<String> batch = pending.subList(start, Math.min(start + batchSize, pending.size()));
+            Map<String, Uri> found = query(batch);
+            List<String> missing = new ArrayList<String>();
+            for (String path : batch) {
+                if (!found.containsKey(path) && new File(path).exists()) {
+                    missing.add(path);
+                }
+            }
+            if (!missing.isEmpty() && insert(missing) > 0) {
+                // bulkInsert doesn't return the new ids
+                found.putAll(query(missing));
+            }
+            result.putAll(found);
+            synchronized (cache) {
+                cache.putAll(found);
+            }
+        }
+        return result;
+    }
+
+    private Map<String, Uri> query(List<String> paths) {
+        Map<String, Uri> found = new HashMap<String, Uri>();
+        StringBuilder selection = new StringBuilder(MediaStore.MediaColumns.DATA).append(" IN (");
+        for (int i = 0; i < paths.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+        Cursor cursor = contentResolver.query(CONTENT_URI, PROJECTION, selection.toString(),
+                paths.toArray(new String[paths.size()]), null);
+        if (cursor == null) {
+            return found;
+        }
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
+            int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+            while (cursor.moveToNext()) {
+                found.put(cursor.getString(dataColumn), ContentUris.withAppendedId(CONTENT_URI, cursor.getLong(idColumn)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return found;
+    }
+
+    private int insert(List<String> paths) {
+        ContentValues[] values = new ContentValues[paths.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(MediaStore.MediaColumns.DATA, paths.get(i));
+        }
+        return contentResolver.bulkInsert(CONTENT_URI, values);
+    }
+
+    /**
+     * Forget the cached Uri of a file, e.g. after it was moved or deleted
+     *
+     * @param path absolute path of the file
+     */
+    public void invalidate(String path) {
+        synchronized (cache) {
+            cache.remove(path);
+        }
+    }
+
+    /**
+     * Forget every cached Uri
+     */
+    public void invalidate() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
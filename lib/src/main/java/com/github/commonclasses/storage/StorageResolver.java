@@ -0,0 +1,173 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Environment;
+import android.os.SystemClock;
+import com.github.commonclasses.metrics.Counter;
+import com.github.commonclasses.metrics.Metrics;
+
+import java.io.File;
+
+/**
+ * Cached storage location resolver
+ * <p/>
+ * Decides between external and internal storage like {@link FileOperations#getFile(Context, String)},
+ * but keeps the resolved root directory and mount state instead of asking
+ * {@link Environment} on every call. The cache is dropped when a media mount/unmount
+ * broadcast arrives, or after a short time anyway in case one is missed.
+ * {@link #resolve(String)} does no logging and no I/O while the cache is valid.
+ */
+public class StorageResolver {
+    public static final long DEFAULT_TTL = 1000;
+
+    private static final Counter LOOKUPS = Metrics.counter("storage.lookups");
+    // lookups which had to ask Environment, the rest were served from the cache
+    private static final Counter RESOLVES = Metrics.counter("storage.resolves");
+
+    private static volatile StorageResolver defaultResolver;
+
+    private final Context context;
+    private final long ttl;
+    private volatile Location location;
+
+    private final BroadcastReceiver mediaReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    private static class Location {
+        final File root;
+        final boolean external;
+        final long expires;
+
+        Location(File root, boolean external, long expires) {
+            this.root = root;
+            this.external = external;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param context Context, only its application context is kept
+     * @param ttl     Milliseconds a resolved location is trusted without a broadcast
+     */
+    public StorageResolver(Context context, long ttl) {
+        Context applicationContext = context.getApplicationContext();
+        this.context = applicationContext != null ? applicationContext : context;
+        this.ttl = ttl;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addAction(Intent.ACTION_MEDIA_SHARED);
+        filter.addDataScheme("file");
+        this.context.registerReceiver(mediaReceiver, filter);
+    }
+
+    /**
+     * Get the shared resolver of the application
+     *
+     * @param context Context
+     * @return the resolver
+     */
+    public static StorageResolver get(Context context) {
+        StorageResolver resolver = defaultResolver;
+        if (resolver == null) {
+            // locked only until it's created, callers on hot paths don't contend on it
+            synchronized (StorageResolver.class) {
+                resolver = defaultResolver;
+                if (resolver == null) {
+                    resolver = new StorageResolver(context, DEFAULT_TTL);
+                    defaultResolver = resolver;
+                }
+            }
+        }
+        return resolver;
+    }
+
+    /**
+     * Get a file object with given filename in the current storage root
+     *
+     * @param filename Given filename
+     * @return File object
+     */
+    public File resolve(String filename) {
+        return new File(location().root, filename);
+    }
+
+    /**
+     * @return root directory of the current storage
+     */
+    public File getRoot() {
+        return location().root;
+    }
+
+    /**
+     * @return true if the current storage is the writable external storage
+     */
+    public boolean isExternal() {
+        return location().external;
+    }
+
+    /**
+     * Forget the resolved location, the next call resolves it again
+     */
+    public void invalidate() {
+        location = null;
+    }
+
+    /**
+     * Stop listening to mount broadcasts
+     */
+    public void release() {
+        context.unregisterReceiver(mediaReceiver);
+    }
+
+    private Location location() {
+        LOOKUPS.increment();
+        Location current = location;
+        if (current == null || SystemClock.elapsedRealtime() >= current.expires) {
+            RESOLVES.increment();
+            current = resolveLocation();
+            location = current;
+        }
+        return current;
+    }
+
+    private Location resolveLocation() {
+        long expires = SystemClock.elapsedRealtime() + ttl;
+        if (Environment.MEDIA_MOUNTED.equalsIgnoreCase(Environment.getExternalStorageState())) {
+            File root = context.getExternalFilesDir(null);
+            if (root != null) {
+                return new Location(root, true, expires);
+            }
+        }
+        return new Location(context.getFilesDir(), false, expires);
+    }
+}
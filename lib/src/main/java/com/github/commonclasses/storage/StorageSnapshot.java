@@ -0,0 +1,182 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * One listing of a directory, indexed by file name
+ * <p/>
+ * The directory is listed once when the snapshot is taken, then lookups, batch deletes,
+ * prefix/glob deletes and size queries all work from the index instead of listing the
+ * directory again for every file. Files created after the snapshot are not seen.
+ *
+ * @see FileOperations#snapshotInternalStorage(android.content.Context)
+ * @see FileOperations#snapshotExternalStorage(android.content.Context)
+ */
+public class StorageSnapshot {
+    private final File directory;
+    private final Map<String, File> files = new HashMap<String, File>();
+
+    /**
+     * Take a snapshot of the plain files in a directory
+     *
+     * @param directory Directory to list
+     */
+    public StorageSnapshot(File directory) {
+        this.directory = directory;
+        File[] children = directory == null ? null : directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isFile()) {
+                    files.put(child.getName(), child);
+                }
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public synchronized boolean contains(String filename) {
+        return files.containsKey(filename);
+    }
+
+    /**
+     * @return names of the files in the snapshot
+     */
+    public synchronized List<String> list() {
+        return new ArrayList<String>(files.keySet());
+    }
+
+    /**
+     * @return total size in bytes of the files in the snapshot
+     */
+    public synchronized long getTotalSize() {
+        long size = 0;
+        for (File file : files.values()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    /**
+     * Delete one file
+     *
+     * @param filename File name in the directory
+     * @return true for success
+     */
+    public synchronized boolean delete(String filename) {
+        File file = files.get(filename);
+        if (file != null && file.delete()) {
+            FileOperations.DELETES.increment();
+            files.remove(filename);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Delete many files
+     *
+     * @param filenames File names in the directory
+     * @return how many files were deleted
+     */
+    public synchronized int delete(Collection<String> filenames) {
+        int deleted = 0;
+        for (String filename : filenames) {
+            if (delete(filename)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete every file whose name starts with the prefix
+     *
+     * @return how many files were deleted
+     */
+    public synchronized int deleteByPrefix(String prefix) {
+        int deleted = 0;
+        Iterator<Map.Entry<String, File>> iterator = files.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, File> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix) && entry.getValue().delete()) {
+                iterator.remove();
+                deleted++;
+            }
+        }
+        FileOperations.DELETES.add(deleted);
+        return deleted;
+    }
+
+    /**
+     * Delete every file whose name matches a glob, where '*' matches any characters and
+     * '?' a single one, e.g. "thumb_*.jpg"
+     *
+     * @return how many files were deleted
+     */
+    public synchronized int deleteByGlob(String glob) {
+        Pattern pattern = globToPattern(glob);
+        int deleted = 0;
+        Iterator<Map.Entry<String, File>> iterator = files.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, File> entry = iterator.next();
+            if (pattern.matcher(entry.getKey()).matches() && entry.getValue().delete()) {
+                iterator.remove();
+                deleted++;
+            }
+        }
+        FileOperations.DELETES.add(deleted);
+        return deleted;
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(glob.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -19,15 +19,15 @@
 
 package com.github.commonclasses.string;
 
-import java.security.SecureRandom;
-import java.util.Random;
-
 /**
  * Random String Generator
+ * <p/>
+ * Static shortcuts to a shared {@link RandomStringGenerator}, create one of those for other
+ * charsets, the fast mode or bulk generation.
  */
 public class RandomString {
-    private static int DEFAULT_STRING_LONG = 6;
-    private static char[] CHARSET_AZ_09 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+    private static final int DEFAULT_LENGTH = 6;
+    private static volatile RandomStringGenerator generator = new RandomStringGenerator(DEFAULT_LENGTH);
 
     /**
      * Get a random string with default length
@@ -35,7 +35,7 @@ public class RandomString {
      * @return the random string
      */
     public static String getRandomString() {
-        return randomString(CHARSET_AZ_09, DEFAULT_STRING_LONG);
+        return generator.next();
     }
 
     /**
@@ -44,21 +44,10 @@ public class RandomString {
      * @param newLength the new length you wanna change to
      * @return the default length
      */
-    public static int changeDefaultLength(int newLength) {
-        if (newLength > 0) {
-            DEFAULT_STRING_LONG = newLength;
-        }
-        return DEFAULT_STRING_LONG;
-    }
-
-    private static String randomString(char[] characterSet, int length) {
-        Random random = new SecureRandom();
-        char[] result = new char[length];
-        for (int i = 0; i < result.length; i++) {
-            // picks a random index out of character set > random character
-            int randomCharIndex = random.nextInt(characterSet.length);
-            result[i] = characterSet[randomCharIndex];
+    public static synchronized int changeDefaultLength(int newLength) {
+        if (newLength > 0 && newLength != generator.getLength()) {
+            generator = new RandomStringGenerator(newLength);
         }
-        return new String(result);
+        return generator.getLength();
     }
 }
@@ -0,0 +1,242 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.string;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Random String Generator with a fixed charset and length
+ * <p/>
+ * Random bits come from a per-thread source, so threads never contend and a SecureRandom is
+ * seeded once per thread instead of once per string. The secure source reads its bytes from
+ * SecureRandom in bulk; the fast one is a xorshift128+ generator, which is not suitable for
+ * secrets. Every character takes 32 random bits, scaled to the charset size with a multiply
+ * and a shift, so no bits are rejected and the bias is below size / 2^32.
+ * <p/>
+ * Thread safe.
+ */
+public class RandomStringGenerator {
+    public static final String CHARSET_AZ_09 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    public static final String CHARSET_ALPHANUMERIC = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    public static final String CHARSET_HEX = "0123456789abcdef";
+
+    private static final int SECURE_BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<Source> SECURE = new ThreadLocal<Source>() {
+        @Override
+        protected Source initialValue() {
+            return new SecureSource();
+        }
+    };
+
+    private static final ThreadLocal<Source> FAST = new ThreadLocal<Source>() {
+        @Override
+        protected Source initialValue() {
+            return new FastSource();
+        }
+    };
+
+    private final char[] charset;
+    private final int length;
+    private final boolean secure;
+
+    private abstract static class Source {
+        abstract int nextInt();
+    }
+
+    private static class SecureSource extends Source {
+        private final SecureRandom random = new SecureRandom();
+        private final byte[] buffer = new byte[SECURE_BUFFER_SIZE];
+        private int position = SECURE_BUFFER_SIZE;
+
+        @Override
+        int nextInt() {
+            if (position == SECURE_BUFFER_SIZE) {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            int value = (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+                    | (buffer[position + 2] & 0xFF) << 8 | (buffer[position + 3] & 0xFF);
+            position += 4;
+            return value;
+        }
+    }
+
+    private static class FastSource extends Source {
+        private long s0;
+        private long s1;
+        private long spare;
+        private boolean hasSpare;
+
+        FastSource() {
+            // seeded once per thread, the state must not be all zero
+            byte[] seed = new SecureRandom().generateSeed(16);
+            for (int i = 0; i < 8; i++) {
+                s0 = s0 << 8 | (seed[i] & 0xFF);
+                s1 = s1 << 8 | (seed[i + 8] & 0xFF);
+            }
+            if (s0 == 0 && s1 == 0) {
+                s1 = 1;
+            }
+        }
+
+        @Override
+        int nextInt() {
+            if (hasSpare) {
+                hasSpare = false;
+                return (int) spare;
+            }
+            long x = s0;
+            long y = s1;
+            s0 = y;
+            x ^= x << 23;
+            s1 = x ^ y ^ (x >>> 17) ^ (y >>> 26);
+            long value = s1 + y;
+            spare = value >>> 32;
+            hasSpare = true;
+            return (int) value;
+        }
+    }
+
+    /**
+     * Secure generator of {@link #CHARSET_AZ_09} strings
+     *
+     * @param length Characters per string
+     */
+    public RandomStringGenerator(int length) {
+        this(CHARSET_AZ_09, length, true);
+    }
+
+    /**
+     * @param charset Characters to pick from
+     * @param length  Characters per string
+     * @param secure  true to use SecureRandom, false for a fast generator which must not be
+     *                used for secrets
+     */
+    public RandomStringGenerator(String charset, int length, boolean secure) {
+        if (charset.length() == 0) {
+            throw new IllegalArgumentException("Charset is empty");
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive");
+        }
+        this.charset = charset.toCharArray();
+        this.length = length;
+        this.secure = secure;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public String getCharset() {
+        return new String(charset);
+    }
+
+    public boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * @return a new random string
+     */
+    public String next() {
+        char[] result = new char[length];
+        fill(result, 0, length);
+        return new String(result);
+    }
+
+    /**
+     * Write one random string into a char array
+     *
+     * @param dest   Array to write to
+     * @param offset Where the string starts, it takes {@link #getLength()} characters
+     */
+    public void next(char[] dest, int offset) {
+        if (offset < 0 || offset + length > dest.length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " length " + length);
+        }
+        fill(dest, offset, length);
+    }
+
+    /**
+     * @param count how many strings
+     * @return new random strings
+     */
+    public String[] next(int count) {
+        String[] result = new String[count];
+        fill(result, 0, count);
+        return result;
+    }
+
+    /**
+     * Fill part of an array with new random strings
+     */
+    public void fill(String[] dest, int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count > dest.length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " count " + count);
+        }
+        // generated in chunks, one char array per chunk
+        int perChunk = Math.max(1, 4096 / length);
+        char[] chars = new char[Math.min(count, perChunk) * length];
+        for (int done = 0; done < count; ) {
+            int chunk = Math.min(count - done, perChunk);
+            fill(chars, 0, chunk * length);
+            for (int i = 0; i < chunk; i++) {
+                dest[offset + done + i] = new String(chars, i * length, length);
+            }
+            done += chunk;
+        }
+    }
+
+    /**
+     * Write random strings to a stream, each followed by the separator
+     *
+     * @param out       Appendable, e.g. a Writer or StringBuilder
+     * @param count     how many strings
+     * @param separator written after each string
+     * @throws IOException
+     */
+    public void write(Appendable out, int count, char separator) throws IOException {
+        int perChunk = Math.max(1, 4096 / (length + 1));
+        char[] chars = new char[Math.min(count, perChunk) * (length + 1)];
+        for (int done = 0; done < count; ) {
+            int chunk = Math.min(count - done, perChunk);
+            for (int i = 0; i < chunk; i++) {
+                int start = i * (length + 1);
+                fill(chars, start, length);
+                chars[start + length] = separator;
+            }
+            out.append(CharBuffer.wrap(chars, 0, chunk * (length + 1)));
+            done += chunk;
+        }
+    }
+
+    private void fill(char[] dest, int offset, int count) {
+        Source source = (secure ? SECURE : FAST).get();
+        long size = charset.length;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            // multiply-shift maps 32 random bits onto [0, size)
+            dest[i] = charset[(int) (((source.nextInt() & 0xFFFFFFFFL) * size) >>> 32)];
+        }
+    }
+}
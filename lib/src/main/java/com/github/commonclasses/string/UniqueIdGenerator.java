@@ -0,0 +1,201 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.string;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unique, time ordered ID generator
+ * <p/>
+ * IDs are positive longs laid out like Snowflake IDs: 41 bits of milliseconds since
+ * 2014-01-01 UTC, 10 bits of node and 12 bits of sequence. The time and sequence live in
+ * one AtomicLong advanced by CAS, so threads never lock. When more than 4096 IDs are taken
+ * within a millisecond, or the clock goes back, the generator runs ahead of the clock
+ * instead of waiting, so IDs from one generator are always unique and increasing.
+ * <p/>
+ * IDs of different generators are only guaranteed distinct if their nodes are. Assign the
+ * nodes yourself wherever IDs from several processes or devices meet, e.g. one per process
+ * role, or handed out by a server, with the constructor or {@link #setDefaultNode(int)}.
+ * Otherwise the shared generator picks a random node, so k generators running at the same
+ * time share a node with a probability of about k * k / 2048.
+ * <p/>
+ * A generator which ran ahead of the clock leaves its "future" IDs behind when its
+ * process ends. A new generator with the same node started before the clock catches up
+ * (1ms per 4096 IDs taken ahead) may return them again, so don't restart a generator with
+ * the same node right after a burst of IDs.
+ * <p/>
+ * The text form is 13 characters of Crockford base32, which sort in the same order as the
+ * IDs and can be written into a caller's char array without any allocation.
+ */
+public class UniqueIdGenerator {
+    public static final long EPOCH = 1388534400000L;
+    public static final int ENCODED_LENGTH = 13;
+    public static final int MAX_NODE = 1023;
+
+    private static final int SEQUENCE_BITS = 12;
+    private static final int NODE_BITS = 10;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+            VALUES[Character.toLowerCase(ALPHABET[i])] = (byte) i;
+        }
+        // Crockford's aliases for easily confused characters
+        VALUES['O'] = VALUES['o'] = 0;
+        VALUES['I'] = VALUES['i'] = VALUES['L'] = VALUES['l'] = 1;
+    }
+
+    private static UniqueIdGenerator defaultInstance;
+    private static int defaultNode = -1;
+
+    private final long node;
+    // milliseconds since EPOCH << SEQUENCE_BITS | sequence of the last ID
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * Shared generator with the node given to {@link #setDefaultNode(int)}, or a random one
+     */
+    public static synchronized UniqueIdGenerator getDefault() {
+        if (defaultInstance == null) {
+            int node = defaultNode >= 0 ? defaultNode : new SecureRandom().nextInt(MAX_NODE + 1);
+            defaultInstance = new UniqueIdGenerator(node);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Set the node of the shared generator, before the first {@link #getDefault()}
+     *
+     * @param node 0 to {@link #MAX_NODE}, distinct for every generator running at the same time
+     */
+    public static synchronized void setDefaultNode(int node) {
+        checkNode(node);
+        if (defaultInstance != null && defaultInstance.node != node) {
+            throw new IllegalStateException("Default generator already uses node " + defaultInstance.node);
+        }
+        defaultNode = node;
+    }
+
+    /**
+     * @param node 0 to {@link #MAX_NODE}, distinct for every generator running at the same time
+     */
+    public UniqueIdGenerator(int node) {
+        checkNode(node);
+        this.node = node;
+    }
+
+    private static void checkNode(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node must be in [0, " + MAX_NODE + "]");
+        }
+    }
+
+    /**
+     * @return a new ID, greater than every ID this generator returned before
+     */
+    public long nextId() {
+        while (true) {
+            long last = state.get();
+            long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+            // a full sequence carries into the time, which then runs ahead of the clock
+            long next = now > last ? now : last + 1;
+            if (state.compareAndSet(last, next)) {
+                return (next >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)
+                        | node << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * @return a new ID in its text form
+     */
+    public String next() {
+        char[] chars = new char[ENCODED_LENGTH];
+        encode(nextId(), chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Write a new ID in its text form into a char array, without allocating
+     *
+     * @param dest   Array to write to
+     * @param offset Where the ID starts, it takes {@link #ENCODED_LENGTH} characters
+     */
+    public void next(char[] dest, int offset) {
+        encode(nextId(), dest, offset);
+    }
+
+    /**
+     * Write an ID as 13 characters of Crockford base32
+     */
+    public static void encode(long id, char[] dest, int offset) {
+        if (offset < 0 || offset + ENCODED_LENGTH > dest.length) {
+            throw new IndexOutOfBoundsException("Offset " + offset);
+        }
+        for (int i = ENCODED_LENGTH - 1; i >= 0; i--) {
+            dest[offset + i] = ALPHABET[(int) (id & 31)];
+            id >>>= 5;
+        }
+    }
+
+    public static String encode(long id) {
+        char[] chars = new char[ENCODED_LENGTH];
+        encode(id, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Parse the text form of an ID, case insensitive
+     */
+    public static long decode(CharSequence text) {
+        if (text.length() != ENCODED_LENGTH) {
+            throw new IllegalArgumentException("Not an ID: " + text);
+        }
+        long id = 0;
+        for (int i = 0; i < ENCODED_LENGTH; i++) {
+            char c = text.charAt(i);
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0 || (i == 0 && value > 15)) {
+                throw new IllegalArgumentException("Not an ID: " + text);
+            }
+            id = id << 5 | value;
+        }
+        return id;
+    }
+
+    /**
+     * @return when the ID was generated, in milliseconds since 1970 (later if its generator
+     * ran ahead of the clock)
+     */
+    public static long getTimestamp(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    public static int getNode(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & MAX_NODE;
+    }
+}
@@ -27,6 +27,9 @@ import android.widget.ListView;
  * ListView for ScrollView
  * <p/>
  * This ListView can expand to all item's total height in a ScrollView
+ * <p/>
+ * Every item is inflated and measured up front and nothing is recycled, so keep it for
+ * short lists. Use {@link VirtualListForScrollView} for long ones.
  */
 public class ListViewForScrollView extends ListView {
     public ListViewForScrollView(Context context) {
@@ -19,13 +19,21 @@
 
 package com.github.commonclasses.widget;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.RectF;
+import android.graphics.Shader;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.util.AttributeSet;
-import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import com.github.commonclasses.R;
 
@@ -38,20 +46,37 @@ import com.github.commonclasses.R;
  * radiusRightTop
  * radiusRightBottom
  * <p/>
- * Can not be init by new in code. Must declare in xml.
+ * Can also be created in code, see {@link #setRadius(float)} and
+ * {@link #setRadii(float, float, float, float)}.
+ * <p/>
+ * Bitmaps are drawn as a round rect filled by a cached BitmapShader, no clipping is needed.
+ * Geometry is only rebuilt when the size, the radii, the image or its matrix change, so
+ * nothing is allocated in onDraw. The alpha, color filter and filtering of the drawable's
+ * paint, which is where setColorFilter and setImageAlpha end up, are applied as well.
+ * Other drawables fall back to clipping with a cached path.
  */
 public class RoundedImageView extends ImageView {
-    private final float DEFAULT_RADIUS = 0f;
-
-    private float mRadiusLT;
-    private float mRadiusLB;
-    private float mRadiusRT;
-    private float mRadiusRB;
-    private Path mPath;
-    private RectF mLeftTop;
-    private RectF mLeftBottom;
-    private RectF mRightTop;
-    private RectF mRightBottom;
+    private static final float DEFAULT_RADIUS = 0f;
+
+    private float mRadiusLT = DEFAULT_RADIUS;
+    private float mRadiusLB = DEFAULT_RADIUS;
+    private float mRadiusRT = DEFAULT_RADIUS;
+    private float mRadiusRB = DEFAULT_RADIUS;
+    // x/y pairs clockwise from left-top, as Path.addRoundRect wants them
+    private final float[] mRadii = new float[8];
+
+    private final Paint mBitmapPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mShaderMatrix = new Matrix();
+    private final RectF mDrawRect = new RectF();
+    private final Path mShaderPath = new Path();
+    private final Path mClipPath = new Path();
+    private BitmapShader mShader;
+    private Bitmap mShaderBitmap;
+    private Drawable mGeometryDrawable;
+    private boolean mGeometryDirty = true;
+    private boolean mSoftwareLayer;
+    // layer type to restore when the software layer isn't needed any more
+    private int mPreviousLayerType;
 
     public RoundedImageView(Context context) {
         super(context);
@@ -86,40 +111,185 @@ public class RoundedImageView extends ImageView {
             mRadiusRB = DEFAULT_RADIUS;
         }
         a.recycle();
-        getViewTreeObserver().addOnPreDrawListener(preDrawListener);
     }
 
-    private ViewTreeObserver.OnPreDrawListener preDrawListener = new ViewTreeObserver.OnPreDrawListener() {
-        @Override
-        public boolean onPreDraw() {
-            initElements();
-            RoundedImageView.this.getViewTreeObserver().removeOnPreDrawListener(this);
-            return true;
-        }
-    };
+    /**
+     * Set the same radius to all 4 corners
+     *
+     * @param radius Radius in pixels
+     */
+    public void setRadius(float radius) {
+        setRadii(radius, radius, radius, radius);
+    }
+
+    /**
+     * Set the radius of each corner, in pixels
+     */
+    public void setRadii(float leftTop, float rightTop, float rightBottom, float leftBottom) {
+        mRadiusLT = Math.max(leftTop, 0);
+        mRadiusRT = Math.max(rightTop, 0);
+        mRadiusRB = Math.max(rightBottom, 0);
+        mRadiusLB = Math.max(leftBottom, 0);
+        rebuildGeometry();
+        invalidate();
+    }
+
+    public float getRadiusLeftTop() {
+        return mRadiusLT;
+    }
+
+    public float getRadiusRightTop() {
+        return mRadiusRT;
+    }
+
+    public float getRadiusRightBottom() {
+        return mRadiusRB;
+    }
+
+    public float getRadiusLeftBottom() {
+        return mRadiusLB;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        rebuildGeometry();
+    }
+
+    @Override
+    protected boolean setFrame(int l, int t, int r, int b) {
+        // ImageView computes the drawable bounds and matrix here
+        boolean changed = super.setFrame(l, t, r, b);
+        mGeometryDirty = true;
+        return changed;
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        mGeometryDirty = true;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix matrix) {
+        super.setImageMatrix(matrix);
+        mGeometryDirty = true;
+    }
 
-    private void initElements() {
-        mPath = new Path();
-        mLeftTop = new RectF(0, 0, mRadiusLT * 2, mRadiusLT * 2);
-        mLeftBottom = new RectF(0, getHeight() - mRadiusLB * 2, mRadiusLB * 2, getHeight());
-        mRightTop = new RectF(getWidth() - mRadiusRT * 2, 0, getWidth(), mRadiusRT * 2);
-        mRightBottom = new RectF(getWidth() - mRadiusRB * 2, getHeight() - mRadiusRB * 2,
-                getWidth(), getHeight());
+    @Override
+    public void setScaleType(ScaleType scaleType) {
+        super.setScaleType(scaleType);
+        mGeometryDirty = true;
+    }
+
+    @Override
+    public void setPadding(int left, int top, int right, int bottom) {
+        super.setPadding(left, top, right, bottom);
+        mGeometryDirty = true;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        mPath.moveTo(0, mRadiusLT);
-        mPath.arcTo(mLeftTop, 180, 90);
-        mPath.lineTo(getWidth() - mRadiusRT, 0);
-        mPath.arcTo(mRightTop, 270, 90);
-        mPath.lineTo(getWidth(), getHeight() - mRadiusRB);
-        mPath.arcTo(mRightBottom, 0, 90);
-        mPath.lineTo(mRadiusLB, getHeight());
-        mPath.arcTo(mLeftBottom, 90, 90);
-        mPath.lineTo(0, mRadiusLT);
-
-        canvas.clipPath(mPath);
-        super.onDraw(canvas);
+        Drawable drawable = getDrawable();
+        if (drawable == null) {
+            return;
+        }
+        // setImageResource and setImageURI don't go through setImageDrawable
+        if (mGeometryDirty || drawable != mGeometryDrawable
+                || (mShader != null && ((BitmapDrawable) drawable).getBitmap() != mShaderBitmap)) {
+            rebuildGeometry();
+        }
+        if (mShader != null) {
+            if (mDrawRect.isEmpty()) {
+                return;
+            }
+            // ImageView keeps its color filter and alpha in the drawable's paint
+            Paint drawablePaint = ((BitmapDrawable) drawable).getPaint();
+            mBitmapPaint.setAlpha(drawablePaint.getAlpha());
+            mBitmapPaint.setColorFilter(drawablePaint.getColorFilter());
+            mBitmapPaint.setFilterBitmap(drawablePaint.isFilterBitmap());
+            if (isUniform()) {
+                canvas.drawRoundRect(mDrawRect, mRadiusLT, mRadiusLT, mBitmapPaint);
+            } else {
+                canvas.drawPath(mShaderPath, mBitmapPaint);
+            }
+        } else {
+            int count = canvas.save();
+            canvas.clipPath(mClipPath);
+            super.onDraw(canvas);
+            canvas.restoreToCount(count);
+        }
+    }
+
+    private boolean isUniform() {
+        return mRadiusLT == mRadiusRT && mRadiusLT == mRadiusRB && mRadiusLT == mRadiusLB;
+    }
+
+    private void rebuildGeometry() {
+        mGeometryDirty = false;
+        mRadii[0] = mRadii[1] = mRadiusLT;
+        mRadii[2] = mRadii[3] = mRadiusRT;
+        mRadii[4] = mRadii[5] = mRadiusRB;
+        mRadii[6] = mRadii[7] = mRadiusLB;
+
+        Drawable drawable = getDrawable();
+        mGeometryDrawable = drawable;
+        Bitmap bitmap = drawable instanceof BitmapDrawable ? ((BitmapDrawable) drawable).getBitmap() : null;
+        if (bitmap == null || bitmap.getWidth() == 0 || bitmap.getHeight() == 0) {
+            releaseShader();
+            mClipPath.reset();
+            mDrawRect.set(0, 0, getWidth(), getHeight());
+            mClipPath.addRoundRect(mDrawRect, mRadii, Path.Direction.CW);
+            setSoftwareLayer(drawable != null);
+            return;
+        }
+        setSoftwareLayer(false);
+        if (bitmap != mShaderBitmap) {
+            mShaderBitmap = bitmap;
+            mShader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            mBitmapPaint.setShader(mShader);
+        }
+
+        // bitmap pixels -> drawable bounds -> image matrix -> padding, as ImageView draws it
+        mDrawRect.set(drawable.getBounds());
+        mShaderMatrix.setScale(mDrawRect.width() / bitmap.getWidth(), mDrawRect.height() / bitmap.getHeight());
+        mShaderMatrix.postTranslate(mDrawRect.left, mDrawRect.top);
+        mShaderMatrix.postConcat(getImageMatrix());
+        mShaderMatrix.postTranslate(getPaddingLeft(), getPaddingTop());
+        mShader.setLocalMatrix(mShaderMatrix);
+
+        // round the visible part of the image
+        mDrawRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        mShaderMatrix.mapRect(mDrawRect);
+        if (!mDrawRect.intersect(getPaddingLeft(), getPaddingTop(),
+                getWidth() - getPaddingRight(), getHeight() - getPaddingBottom())) {
+            mDrawRect.setEmpty();
+        }
+        mShaderPath.reset();
+        mShaderPath.addRoundRect(mDrawRect, mRadii, Path.Direction.CW);
+    }
+
+    private void releaseShader() {
+        mShader = null;
+        mShaderBitmap = null;
+        mBitmapPaint.setShader(null);
+    }
+
+    /**
+     * clipPath isn't supported with hardware acceleration before API 18
+     */
+    @SuppressLint("NewApi")
+    private void setSoftwareLayer(boolean software) {
+        if (software == mSoftwareLayer || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return;
+        }
+        mSoftwareLayer = software;
+        if (software) {
+            mPreviousLayerType = getLayerType();
+            setLayerType(LAYER_TYPE_SOFTWARE, null);
+        } else {
+            setLayerType(mPreviousLayerType, null);
+        }
     }
 }
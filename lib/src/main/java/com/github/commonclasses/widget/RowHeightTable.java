@@ -0,0 +1,153 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.widget;
+
+import java.util.Arrays;
+
+/**
+ * Height of every row of a virtual list, measured or estimated
+ * <p/>
+ * Rows not measured yet count as the average measured height. Offsets are kept in two
+ * Fenwick trees (measured heights and measured rows), so updating a height and finding
+ * the offset of a row or the row at an offset cost O(log n) instead of a walk over all rows.
+ */
+class RowHeightTable {
+    private static final int UNKNOWN = -1;
+
+    private final int defaultEstimate;
+    private int count;
+    private int[] heights = new int[0];
+    private int[] heightTree = new int[1];
+    private int[] measuredTree = new int[1];
+    private long measuredTotal;
+    private int measuredCount;
+
+    /**
+     * @param defaultEstimate Height in pixels used before any row is measured
+     */
+    RowHeightTable(int defaultEstimate) {
+        this.defaultEstimate = Math.max(defaultEstimate, 1);
+    }
+
+    /**
+     * Forget all heights and resize to the given row count
+     */
+    void reset(int count) {
+        this.count = count;
+        if (heights.length < count) {
+            heights = new int[count];
+            heightTree = new int[count + 1];
+            measuredTree = new int[count + 1];
+        } else {
+            Arrays.fill(heightTree, 0);
+            Arrays.fill(measuredTree, 0);
+        }
+        Arrays.fill(heights, UNKNOWN);
+        measuredTotal = 0;
+        measuredCount = 0;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    boolean isMeasured(int position) {
+        return heights[position] != UNKNOWN;
+    }
+
+    /**
+     * @return measured height of the row, or the current estimate
+     */
+    int getHeight(int position) {
+        int height = heights[position];
+        return height != UNKNOWN ? height : getEstimate();
+    }
+
+    int getEstimate() {
+        return measuredCount == 0 ? defaultEstimate : (int) Math.max(measuredTotal / measuredCount, 1);
+    }
+
+    /**
+     * @return how much the height of the row changed, estimate included
+     */
+    int setHeight(int position, int height) {
+        int old = heights[position];
+        if (old == height) {
+            return 0;
+        }
+        int before = getHeight(position);
+        if (old == UNKNOWN) {
+            add(measuredTree, position, 1);
+            measuredCount++;
+            old = 0;
+        }
+        add(heightTree, position, height - old);
+        measuredTotal += height - old;
+        heights[position] = height;
+        return height - before;
+    }
+
+    /**
+     * @return top of the row, or the total height for position == count
+     */
+    int getOffset(int position) {
+        int measured = sum(measuredTree, position);
+        return (int) (sum(heightTree, position) + (long) (position - measured) * getEstimate());
+    }
+
+    int getTotalHeight() {
+        return getOffset(count);
+    }
+
+    /**
+     * @return the row covering the offset, clamped to [0, count - 1]; -1 if there are no rows
+     */
+    int getPositionAt(int offset) {
+        if (count == 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (getOffset(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static void add(int[] tree, int position, int delta) {
+        for (int i = position + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    // sum of [0, position)
+    private static int sum(int[] tree, int position) {
+        int sum = 0;
+        for (int i = position; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+}
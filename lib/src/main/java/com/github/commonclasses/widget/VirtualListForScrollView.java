@@ -0,0 +1,394 @@
+/*
+ * This source is part of the CommonClasses repository.
+ *
+ * Copyright 2014 Kevin Liu (airk908@gmail.com)
+ *
+ * CommonClasses is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CommonClasses is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CommonClasses.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.github.commonclasses.widget;
+
+import android.content.Context;
+import android.database.DataSetObserver;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+import android.widget.ListAdapter;
+import android.widget.ScrollView;
+
+import java.util.ArrayList;
+
+/**
+ * Recycling list for ScrollView
+ * <p/>
+ * Unlike {@link ListViewForScrollView} it doesn't inflate and measure every item. It reports
+ * the height of all rows to the ScrollView, but only rows inside the visible part (plus half
+ * a screen above and below) are bound, measured and attached. Rows leaving that window go
+ * to a scrap heap per view type and are handed back to {@link ListAdapter#getView} as
+ * convertView.
+ * <p/>
+ * Heights of rows never shown are estimated from the measured ones. When an estimated row
+ * above the screen gets its real height, the parent ScrollView is scrolled by the
+ * difference so the visible rows don't jump.
+ * <p/>
+ * Follows the scroll of any parent through {@link ViewTreeObserver.OnScrollChangedListener}.
+ */
+public class VirtualListForScrollView extends ViewGroup {
+    private static final int DEFAULT_ROW_HEIGHT_DIP = 48;
+
+    private ListAdapter mAdapter;
+    private final AdapterObserver mObserver = new AdapterObserver();
+    private final RowHeightTable mHeights;
+    private final ArrayList<ArrayList<View>> mScrap = new ArrayList<ArrayList<View>>();
+    private final ArrayList<View> mActive = new ArrayList<View>();
+    private final Rect mVisibleRect = new Rect();
+    private int mFirstPosition;
+    private int mChildWidthSpec;
+    private int mMeasuredWidth = -1;
+    private int mPendingScroll;
+
+    public VirtualListForScrollView(Context context) {
+        this(context, null);
+    }
+
+    public VirtualListForScrollView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public VirtualListForScrollView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        float density = context.getResources().getDisplayMetrics().density;
+        mHeights = new RowHeightTable((int) (DEFAULT_ROW_HEIGHT_DIP * density + 0.5f));
+    }
+
+    public ListAdapter getAdapter() {
+        return mAdapter;
+    }
+
+    public void setAdapter(ListAdapter adapter) {
+        if (mAdapter != null) {
+            mAdapter.unregisterDataSetObserver(mObserver);
+        }
+        clearViews();
+        mAdapter = adapter;
+        if (adapter != null) {
+            adapter.registerDataSetObserver(mObserver);
+            for (int i = adapter.getViewTypeCount(); i > 0; i--) {
+                mScrap.add(new ArrayList<View>());
+            }
+        }
+        mHeights.reset(adapter == null ? 0 : adapter.getCount());
+        requestLayout();
+    }
+
+    public int getFirstVisiblePosition() {
+        return mFirstPosition;
+    }
+
+    public int getLastVisiblePosition() {
+        return mFirstPosition + getChildCount() - 1;
+    }
+
+    /**
+     * @return the attached view of the position, null if the row is out of the window
+     */
+    public View getViewForPosition(int position) {
+        int index = position - mFirstPosition;
+        return index >= 0 && index < getChildCount() ? getChildAt(index) : null;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(mScrollListener);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnScrollChangedListener(mScrollListener);
+        super.onDetachedFromWindow();
+    }
+
+    private final ViewTreeObserver.OnScrollChangedListener mScrollListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+                @Override
+                public void onScrollChanged() {
+                    if (mAdapter == null || mMeasuredWidth < 0 || isLayoutRequested()) {
+                        return;
+                    }
+                    if (!getLocalVisibleRect(mVisibleRect) || isWindowFilled()) {
+                        return;
+                    }
+                    int total = mHeights.getTotalHeight();
+                    fill(true);
+                    if (mHeights.getTotalHeight() != total) {
+                        requestLayout();
+                    } else {
+                        applyPendingScroll();
+                    }
+                    invalidate();
+                }
+            };
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec);
+        if (width != mMeasuredWidth) {
+            // rows may wrap differently, all heights are stale
+            mMeasuredWidth = width;
+            mHeights.reset(mAdapter == null ? 0 : mAdapter.getCount());
+        }
+        mChildWidthSpec = MeasureSpec.makeMeasureSpec(
+                Math.max(width - getPaddingLeft() - getPaddingRight(), 0), MeasureSpec.EXACTLY);
+        if (mAdapter != null) {
+            if (!getLocalVisibleRect(mVisibleRect)) {
+                // not laid out yet, assume the top of the list is on screen
+                mVisibleRect.set(0, 0, width, getResources().getDisplayMetrics().heightPixels);
+            }
+            fill(false);
+        }
+        int height = getPaddingTop() + mHeights.getTotalHeight() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            layoutChild(getChildAt(i), mFirstPosition + i);
+        }
+        applyPendingScroll();
+    }
+
+    private void layoutChild(View child, int position) {
+        int top = getPaddingTop() + mHeights.getOffset(position);
+        child.layout(getPaddingLeft(), top, getPaddingLeft() + child.getMeasuredWidth(),
+                top + child.getMeasuredHeight());
+    }
+
+    /**
+     * @return true if the attached rows cover mVisibleRect
+     */
+    private boolean isWindowFilled() {
+        int count = getChildCount();
+        if (count == 0) {
+            return mHeights.getCount() == 0;
+        }
+        int top = mVisibleRect.top - getPaddingTop();
+        int bottom = mVisibleRect.bottom - getPaddingTop();
+        int last = mFirstPosition + count - 1;
+        return (mFirstPosition == 0 || mHeights.getOffset(mFirstPosition) <= top)
+                && (last == mHeights.getCount() - 1 || mHeights.getOffset(last + 1) >= bottom);
+    }
+
+    /**
+     * Bind, measure and attach the rows around mVisibleRect, recycle the others
+     *
+     * @param layout true to also lay out the rows, outside of a layout pass
+     */
+    private void fill(boolean layout) {
+        int overscan = mVisibleRect.height() / 2;
+        int top = Math.max(mVisibleRect.top - getPaddingTop() - overscan, 0);
+        int bottom = mVisibleRect.bottom - getPaddingTop() + overscan;
+
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            mActive.add(getChildAt(i));
+        }
+        int oldFirst = mFirstPosition;
+        detachAllViewsFromParent();
+
+        int first = mHeights.getPositionAt(top);
+        if (first < 0) {
+            scrapActive();
+            mFirstPosition = 0;
+            return;
+        }
+        // first row on screen, it must not move when rows above it get their real heights
+        int anchor = mHeights.getPositionAt(mVisibleRect.top - getPaddingTop());
+        int anchorTop = mHeights.getOffset(anchor);
+        int position = first;
+        int offset = mHeights.getOffset(first);
+        while (position < mHeights.getCount() && (position == first || offset < bottom)) {
+            View child = obtainView(position, oldFirst);
+            if (!mHeights.isMeasured(position) || child.isLayoutRequested()) {
+                ViewGroup.LayoutParams lp = child.getLayoutParams();
+                int heightSpec = lp.height >= 0 ? MeasureSpec.makeMeasureSpec(lp.height, MeasureSpec.EXACTLY)
+                        : MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+                child.measure(getChildMeasureSpec(mChildWidthSpec, 0, lp.width), heightSpec);
+                mHeights.setHeight(position, child.getMeasuredHeight());
+            }
+            offset += mHeights.getHeight(position);
+            position++;
+        }
+        mFirstPosition = first;
+        scrapActive();
+        mPendingScroll += mHeights.getOffset(anchor) - anchorTop;
+        if (layout) {
+            count = getChildCount();
+            for (int i = 0; i < count; i++) {
+                layoutChild(getChildAt(i), first + i);
+            }
+        }
+    }
+
+    private View obtainView(int position, int oldFirst) {
+        int activeIndex = position - oldFirst;
+        View child = null;
+        if (activeIndex >= 0 && activeIndex < mActive.size()) {
+            child = mActive.set(activeIndex, null);
+        }
+        if (child != null) {
+            attachViewToParent(child, -1, child.getLayoutParams());
+            return child;
+        }
+        int type = mAdapter.getItemViewType(position);
+        ArrayList<View> scrap = type >= 0 && type < mScrap.size() ? mScrap.get(type) : null;
+        View convertView = scrap == null || scrap.isEmpty() ? null : scrap.remove(scrap.size() - 1);
+        child = mAdapter.getView(position, convertView, this);
+        ViewGroup.LayoutParams params = child.getLayoutParams();
+        LayoutParams lp;
+        if (params instanceof LayoutParams) {
+            lp = (LayoutParams) params;
+        } else {
+            lp = params == null ? generateDefaultLayoutParams() : generateLayoutParams(params);
+        }
+        lp.viewType = type;
+        if (child == convertView) {
+            attachViewToParent(child, -1, lp);
+        } else {
+            if (convertView != null) {
+                scrap.add(convertView);
+            }
+            addViewInLayout(child, -1, lp, true);
+        }
+        // bound to new data, measure again
+        child.forceLayout();
+        return child;
+    }
+
+    private void scrapActive() {
+        for (int i = 0; i < mActive.size(); i++) {
+            View view = mActive.get(i);
+            if (view != null) {
+                int type = ((LayoutParams) view.getLayoutParams()).viewType;
+                if (type >= 0 && type < mScrap.size()) {
+                    mScrap.get(type).add(view);
+                } else {
+                    removeDetachedView(view, false);
+                }
+            }
+        }
+        mActive.clear();
+    }
+
+    private void applyPendingScroll() {
+        if (mPendingScroll == 0) {
+            return;
+        }
+        final int delta = mPendingScroll;
+        mPendingScroll = 0;
+        ViewParent parent = getParent();
+        while (parent != null && !(parent instanceof ScrollView)) {
+            parent = parent.getParent();
+        }
+        if (parent != null) {
+            final ScrollView scrollView = (ScrollView) parent;
+            // after the ScrollView has taken the new height
+            scrollView.post(new Runnable() {
+                @Override
+                public void run() {
+                    scrollView.scrollBy(0, delta);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected LayoutParams generateDefaultLayoutParams() {
+        return new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
+    }
+
+    @Override
+    public LayoutParams generateLayoutParams(AttributeSet attrs) {
+        return new LayoutParams(getContext(), attrs);
+    }
+
+    @Override
+    protected LayoutParams generateLayoutParams(ViewGroup.LayoutParams p) {
+        return new LayoutParams(p);
+    }
+
+    @Override
+    protected boolean checkLayoutParams(ViewGroup.LayoutParams p) {
+        return p instanceof LayoutParams;
+    }
+
+    private void clearViews() {
+        removeAllViewsInLayout();
+        for (ArrayList<View> scrap : mScrap) {
+            for (View view : scrap) {
+                removeDetachedView(view, false);
+            }
+        }
+        mScrap.clear();
+        mFirstPosition = 0;
+        mPendingScroll = 0;
+    }
+
+    /**
+     * Row layout params, remembers the view type for the scrap heap
+     */
+    public static class LayoutParams extends ViewGroup.LayoutParams {
+        int viewType;
+
+        public LayoutParams(Context c, AttributeSet attrs) {
+            super(c, attrs);
+        }
+
+        public LayoutParams(int width, int height) {
+            super(width, height);
+        }
+
+        public LayoutParams(ViewGroup.LayoutParams source) {
+            super(source);
+        }
+    }
+
+    private class AdapterObserver extends DataSetObserver {
+        @Override
+        public void onChanged() {
+            // rows may have moved, recycle everything and measure again
+            int count = getChildCount();
+            for (int i = 0; i < count; i++) {
+                mActive.add(getChildAt(i));
+            }
+            detachAllViewsFromParent();
+            scrapActive();
+            mFirstPosition = 0;
+            mPendingScroll = 0;
+            mHeights.reset(mAdapter.getCount());
+            requestLayout();
+            invalidate();
+        }
+
+        @Override
+        public void onInvalidated() {
+            onChanged();
+        }
+    }
+}